@@ -0,0 +1,142 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Throughput of storing synchronized messages one at a time and in groups, on the database of the device
+// The messages are stored in a folder of an account which is not synchronized and which is deleted afterwards
+
+@RunWith(AndroidJUnit4.class)
+public class StoreMessagesTest {
+    private static final int MESSAGES = 500;
+    private static final int GROUP = 200; // default number of rows per commit
+
+    private Context context;
+    private DB db;
+    private EntityAccount account;
+    private EntityFolder folder;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getTargetContext();
+        db = DB.getInstance(context);
+
+        account = new EntityAccount();
+        account.name = "Throughput test";
+        account.host = "localhost";
+        account.port = 993;
+        account.user = "test";
+        account.password = "";
+        account.auth_type = Helper.AUTH_TYPE_PASSWORD;
+        account.primary = false;
+        account.synchronize = false;
+        account.store_sent = false;
+        account.poll_interval = 9;
+        account.id = db.account().insertAccount(account);
+
+        folder = new EntityFolder();
+        folder.account = account.id;
+        folder.name = "Throughput test";
+        folder.type = EntityFolder.USER;
+        folder.synchronize = false;
+        folder.after = 30;
+        folder.id = db.folder().insertFolder(folder);
+    }
+
+    @After
+    public void tearDown() {
+        db.account().deleteAccount(account.id);
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        long single = store(1, 0);
+        long grouped = store(GROUP, MESSAGES);
+        Log.i(Helper.TAG, "Stored messages=" + MESSAGES +
+                " single=" + (MESSAGES * 1000L / Math.max(1, single)) + " msg/s" +
+                " grouped=" + (MESSAGES * 1000L / Math.max(1, grouped)) + " msg/s");
+
+        assertTrue("single=" + single + " ms grouped=" + grouped + " ms", grouped < single);
+    }
+
+    // Returns the elapsed time in milliseconds
+    private long store(int group, long offset) throws Exception {
+        long start = SystemClock.elapsedRealtime();
+        List<ServiceSynchronize.ParsedMessage> batch = new ArrayList<>();
+        for (int i = 1; i <= MESSAGES; i++) {
+            batch.add(getParsed(offset + i));
+            if (batch.size() == group || i == MESSAGES) {
+                int[] result = ServiceSynchronize.storeMessages(context, folder, batch);
+                for (int status : result)
+                    assertEquals(1, status);
+                batch.clear();
+            }
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private ServiceSynchronize.ParsedMessage getParsed(long uid) {
+        EntityMessage message = new EntityMessage();
+        message.account = account.id;
+        message.folder = folder.id;
+        message.uid = uid;
+        message.msgid = "<" + uid + "@throughput.test>";
+        message.thread = message.msgid;
+        message.subject = "Message " + uid;
+        message.received = new Date().getTime();
+        message.seen = false;
+        message.ui_seen = false;
+        message.ui_hide = false;
+        message.ui_found = false;
+
+        ServiceSynchronize.ParsedMessage parsed = new ServiceSynchronize.ParsedMessage();
+        parsed.uid = uid;
+        parsed.seen = false;
+        parsed.msgid = message.msgid;
+        parsed.thread = message.thread;
+        parsed.message = message;
+        parsed.html = "<p>Text of message " + uid + "</p>";
+        parsed.display = parsed.html;
+        parsed.version = HtmlHelper.getVersion(context);
+        parsed.text = "Text of message " + uid;
+        parsed.attachments = new ArrayList<>();
+        return parsed;
+    }
+}
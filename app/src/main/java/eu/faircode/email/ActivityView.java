@@ -281,6 +281,7 @@ public class ActivityView extends ActivityBilling implements FragmentManager.OnB
                             draft.ui_seen = false;
                             draft.ui_hide = false;
                             draft.ui_found = false;
+                            draft.content = true;
                             draft.id = db.message().insertMessage(draft);
                             draft.write(context, body);
                         }
@@ -681,7 +682,8 @@ public class ActivityView extends ActivityBilling implements FragmentManager.OnB
                         long id = args.getLong("id");
                         Uri uri = args.getParcelable("uri");
 
-                        File file = EntityAttachment.getFile(context, id);
+                        EntityAttachment attachment = DB.getInstance(context).attachment().getAttachment(id);
+                        File file = attachment.getFile(context);
 
                         ParcelFileDescriptor pfd = null;
                         FileOutputStream fos = null;
@@ -39,11 +39,15 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 import androidx.annotation.NonNull;
 import androidx.core.content.FileProvider;
 import androidx.lifecycle.LifecycleOwner;
+import androidx.lifecycle.Observer;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.ListUpdateCallback;
@@ -57,6 +61,7 @@ public class AdapterAttachment extends RecyclerView.Adapter<AdapterAttachment.Vi
 
     private List<EntityAttachment> all = new ArrayList<>();
     private List<EntityAttachment> filtered = new ArrayList<>();
+    private Map<Long, Integer> progress = new HashMap<>();
 
     public class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
         View itemView;
@@ -114,8 +119,11 @@ public class AdapterAttachment extends RecyclerView.Adapter<AdapterAttachment.Vi
 
             ivSave.setVisibility(readonly && attachment.available ? View.VISIBLE : View.GONE);
 
-            if (attachment.progress != null)
-                progressbar.setProgress(attachment.progress);
+            // The stored progress only marks a transfer, the actual progress is kept in memory
+            if (attachment.progress != null) {
+                Integer percentage = progress.get(attachment.id);
+                progressbar.setProgress(percentage == null ? attachment.progress : percentage);
+            }
             progressbar.setVisibility(
                     attachment.progress == null || attachment.available ? View.GONE : View.VISIBLE);
 
@@ -138,7 +146,7 @@ public class AdapterAttachment extends RecyclerView.Adapter<AdapterAttachment.Vi
                     @Override
                     protected Void onLoad(Context context, Bundle args) {
                         DB.getInstance(context).attachment().deleteAttachment(attachment.id);
-                        EntityAttachment.getFile(context, attachment.id).delete();
+                        EntityAttachment.purge(context);
                         return null;
                     }
                 }.load(context, owner, args);
@@ -154,7 +162,7 @@ public class AdapterAttachment extends RecyclerView.Adapter<AdapterAttachment.Vi
             } else {
                 if (attachment.available) {
                     // Build file name
-                    File file = EntityAttachment.getFile(context, attachment.id);
+                    File file = attachment.getFile(context);
 
                     if ("encrypted.asc".equals(attachment.name)) {
                         Intent intent = new Intent(FragmentMessage.ACTION_DECRYPT_MESSAGE);
@@ -233,6 +241,21 @@ public class AdapterAttachment extends RecyclerView.Adapter<AdapterAttachment.Vi
         this.readonly = readonly;
         this.debug = PreferenceManager.getDefaultSharedPreferences(context).getBoolean("debug", false);
         setHasStableIds(true);
+
+        AttachmentProgress.live().observe(owner, new Observer<Map<Long, Integer>>() {
+            @Override
+            public void onChanged(Map<Long, Integer> current) {
+                Map<Long, Integer> previous = progress;
+                progress = current;
+
+                // Rebind changed items only
+                for (int i = 0; i < filtered.size(); i++) {
+                    Long id = filtered.get(i).id;
+                    if (!Objects.equals(previous.get(id), current.get(id)))
+                        notifyItemChanged(i);
+                }
+            }
+        });
     }
 
     public void set(@NonNull List<EntityAttachment> attachments) {
@@ -0,0 +1,82 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+// Keeps the progress of attachment transfers in memory
+// Changes are published at most a few times per second, only the final state is stored in the database
+
+public class AttachmentProgress {
+    private static final Map<Long, Integer> progress = new HashMap<>(); // attachment, percentage
+    private static final MutableLiveData<Map<Long, Integer>> live = new MutableLiveData<>();
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static boolean scheduled = false;
+
+    private static final long PUBLISH_INTERVAL = 250L; // milliseconds
+
+    static LiveData<Map<Long, Integer>> live() {
+        return live;
+    }
+
+    static void set(long id, long done, Integer total) {
+        if (total == null || total <= 0)
+            return;
+
+        int percentage = (int) Math.min(100, done * 100 / total);
+        synchronized (progress) {
+            Integer previous = progress.put(id, percentage);
+            if (previous == null || previous != percentage)
+                schedule();
+        }
+    }
+
+    static void clear(long id) {
+        synchronized (progress) {
+            if (progress.remove(id) != null)
+                schedule();
+        }
+    }
+
+    private static void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            handler.postDelayed(publish, PUBLISH_INTERVAL);
+        }
+    }
+
+    private static Runnable publish = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (progress) {
+                scheduled = false;
+                live.setValue(new HashMap<>(progress));
+            }
+        }
+    };
+}
@@ -0,0 +1,388 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Append-only store for message texts
+// Texts are appended to segment files as UTF-8, compressed when that saves space
+// The body table holds the location of the text of each message and of variants derived from it
+// Rewritten and deleted texts are reclaimed by compacting segments with little live data
+// The lock guards the segment files only and is never held while writing to the database,
+// because texts are written by callers which are in a database transaction already
+
+public class BodyStore {
+    static final int RAW = 0;
+    static final int DISPLAY = 1; // sanitized for display
+
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private static Integer current = null; // segment being appended to
+    private static final Map<Integer, Integer> writing = new HashMap<>(); // segment, texts not recorded yet
+
+    private static final long SEGMENT_SIZE = 4 * 1024 * 1024L; // bytes
+    private static final int COMPRESS_THRESHOLD = 2048; // bytes
+    private static final float COMPACT_THRESHOLD = 0.5f; // fraction of live data
+
+    static void write(Context context, long message, String body) throws IOException {
+        write(context, message, RAW, null, body);
+    }
+
+    static void write(Context context, long message, int variant, String version, String body) throws IOException {
+        EntityBody entry = stage(context, variant, version, body);
+        try {
+            record(context, message, entry);
+        } finally {
+            release(context, entry);
+        }
+    }
+
+    // Appends a text to a segment without recording it
+    // Staged texts can be recorded in a batch in one transaction, after which they need to be released
+    static EntityBody stage(Context context, int variant, String version, String body) throws IOException {
+        byte[] data = body.getBytes(StandardCharsets.UTF_8);
+        byte[] stored = data;
+        boolean compressed = false;
+        if (data.length >= COMPRESS_THRESHOLD) {
+            byte[] deflated = deflate(data);
+            if (deflated.length < data.length) {
+                stored = deflated;
+                compressed = true;
+            }
+        }
+
+        EntityBody entry;
+        lock.writeLock().lock();
+        try {
+            entry = append(context, stored);
+            begin(entry.segment);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        entry.variant = variant;
+        entry.version = version;
+        entry.size = data.length;
+        entry.compressed = compressed;
+        return entry;
+    }
+
+    // Database only, so it can be part of the transaction of the caller
+    static void record(Context context, long message, EntityBody entry) {
+        DB db = DB.getInstance(context);
+
+        entry.message = message;
+        db.body().insertBody(entry);
+
+        // Variants were produced from the previous text
+        if (entry.variant == RAW)
+            db.body().deleteVariants(message, RAW);
+    }
+
+    // After the transaction which recorded the text, if any, has ended
+    static void release(Context context, EntityBody entry) {
+        end(entry.segment);
+
+        // The text is not read from a separate file anymore
+        if (entry.variant == RAW && entry.message != null) {
+            File legacy = getLegacyFile(context, entry.message);
+            if (legacy.exists())
+                legacy.delete();
+        }
+    }
+
+    static String read(Context context, long message) throws IOException {
+        DB db = DB.getInstance(context);
+
+        lock.readLock().lock();
+        try {
+            EntityBody entry = db.body().getBody(message, RAW);
+            if (entry != null)
+                return decode(map(context, entry), entry);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        // Texts stored as separate files are moved into the store when they are first read
+        // Concurrent migrations of the same text store the same text, of which the last one is kept
+        String body = new String(readLegacy(getLegacyFile(context, message)), StandardCharsets.UTF_8);
+        Log.i(Helper.TAG, "Migrating text message=" + message);
+        write(context, message, body);
+        return body;
+    }
+
+    // Returns null when the variant was not stored or was produced with other settings
+    static String read(Context context, long message, int variant, String version) throws IOException {
+        DB db = DB.getInstance(context);
+
+        lock.readLock().lock();
+        try {
+            EntityBody entry = db.body().getBody(message, variant);
+            if (entry == null || !Objects.equals(entry.version, version))
+                return null;
+            return decode(map(context, entry), entry);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    static void migrate(Context context) {
+        DB db = DB.getInstance(context);
+        File[] files = new File(context.getFilesDir(), "messages").listFiles();
+        if (files != null)
+            for (File file : files)
+                if (file.isFile()) {
+                    long id = Long.parseLong(file.getName());
+                    if (db.message().countMessage(id) == 0) {
+                        Log.i(Helper.TAG, "Cleanup message id=" + id);
+                        if (!file.delete())
+                            Log.w(Helper.TAG, "Error deleting " + file);
+                    } else
+                        try {
+                            read(context, id);
+                        } catch (IOException ex) {
+                            Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+                        }
+                }
+    }
+
+    static void compact(Context context) throws IOException {
+        DB db = DB.getInstance(context);
+
+        File[] files;
+        lock.readLock().lock();
+        try {
+            getCurrent(context);
+            files = getDir(context).listFiles();
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (files == null)
+            return;
+
+        for (File file : files) {
+            int segment = Integer.parseInt(file.getName());
+
+            long used = db.body().getSegmentUsage(segment);
+            long size = file.length();
+            Log.i(Helper.TAG, "Segment " + segment + " size=" + size + " used=" + used);
+            if (used > 0 && used >= size * COMPACT_THRESHOLD)
+                continue;
+
+            // Copy the live texts to the end of the store
+            List<EntityBody> entries = db.body().getBodies(segment);
+            List<EntityBody> copies = new ArrayList<>();
+            lock.writeLock().lock();
+            try {
+                if (segment == current || writing.containsKey(segment))
+                    continue;
+
+                for (EntityBody entry : entries) {
+                    ByteBuffer buffer = map(context, entry);
+                    byte[] data = new byte[entry.length];
+                    buffer.get(data);
+
+                    EntityBody copy = append(context, data);
+                    begin(copy.segment);
+                    copies.add(copy);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            // Texts rewritten in the meantime are not moved
+            int moved = 0;
+            try {
+                db.beginTransaction();
+                for (int i = 0; i < entries.size(); i++) {
+                    EntityBody entry = entries.get(i);
+                    EntityBody copy = copies.get(i);
+                    moved += db.body().moveBody(entry.message, entry.variant,
+                            entry.segment, entry.position, copy.segment, copy.position);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                for (EntityBody copy : copies)
+                    end(copy.segment);
+            }
+            Log.i(Helper.TAG, "Compacted segment " + segment + " moved=" + moved + "/" + entries.size());
+
+            lock.writeLock().lock();
+            try {
+                if (db.body().getSegmentUsage(segment) == 0 && !writing.containsKey(segment))
+                    if (!file.delete())
+                        Log.w(Helper.TAG, "Error deleting " + file);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // Appended texts are counted until they are recorded, so their segment is not compacted in the meantime
+    // Called with the write lock held
+    private static void begin(int segment) {
+        Integer count = writing.get(segment);
+        writing.put(segment, count == null ? 1 : count + 1);
+    }
+
+    private static void end(int segment) {
+        lock.writeLock().lock();
+        try {
+            int count = writing.get(segment) - 1;
+            if (count == 0)
+                writing.remove(segment);
+            else
+                writing.put(segment, count);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static EntityBody append(Context context, byte[] data) throws IOException {
+        int segment = getCurrent(context);
+        File file = getSegmentFile(context, segment);
+        if (file.length() >= SEGMENT_SIZE) {
+            segment = ++current;
+            file = getSegmentFile(context, segment);
+        }
+
+        FileOutputStream os = new FileOutputStream(file, true);
+        try {
+            EntityBody entry = new EntityBody();
+            entry.segment = segment;
+            entry.position = os.getChannel().size();
+            entry.length = data.length;
+            os.write(data);
+            return entry;
+        } finally {
+            os.close();
+        }
+    }
+
+    private static ByteBuffer map(Context context, EntityBody entry) throws IOException {
+        // The mapping stays valid after the file has been closed
+        RandomAccessFile file = new RandomAccessFile(getSegmentFile(context, entry.segment), "r");
+        try {
+            return file.getChannel().map(FileChannel.MapMode.READ_ONLY, entry.position, entry.length);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static String decode(ByteBuffer buffer, EntityBody entry) throws IOException {
+        if (entry.compressed) {
+            byte[] data = new byte[entry.length];
+            buffer.get(data);
+            return new String(inflate(data, entry.size), StandardCharsets.UTF_8);
+        } else
+            return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream os = new ByteArrayOutputStream(data.length / 2);
+            byte[] buffer = new byte[Helper.ATTACHMENT_BUFFER_SIZE];
+            while (!deflater.finished())
+                os.write(buffer, 0, deflater.deflate(buffer));
+            return os.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int size) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] result = new byte[size];
+            int count = 0;
+            while (count < size && !inflater.finished())
+                count += inflater.inflate(result, count, size - count);
+            if (count != size)
+                throw new IOException("Inflated " + count + " of " + size + " bytes");
+            return result;
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int getCurrent(Context context) {
+        if (current == null) {
+            current = 0;
+            File[] files = getDir(context).listFiles();
+            if (files != null)
+                for (File file : files)
+                    current = Math.max(current, Integer.parseInt(file.getName()));
+        }
+        return current;
+    }
+
+    private static File getDir(Context context) {
+        File dir = new File(context.getFilesDir(), "bodies");
+        dir.mkdir();
+        return dir;
+    }
+
+    private static File getSegmentFile(Context context, int segment) {
+        return new File(getDir(context), Integer.toString(segment));
+    }
+
+    private static File getLegacyFile(Context context, long message) {
+        return new File(new File(context.getFilesDir(), "messages"), Long.toString(message));
+    }
+
+    private static byte[] readLegacy(File file) throws IOException {
+        DataInputStream is = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] data = new byte[(int) file.length()];
+            is.readFully(data);
+            return data;
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -27,13 +27,16 @@ import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPMessage;
 import com.sun.mail.imap.IMAPStore;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import javax.mail.Folder;
 import javax.mail.Message;
+import javax.mail.MessageRemovedException;
 import javax.mail.Session;
 import javax.mail.search.AndTerm;
 import javax.mail.search.BodyTerm;
@@ -52,6 +55,7 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
     private Context context;
     private long fid;
     private String search;
+    private int pageSize;
     private Handler mainHandler;
     private IBoundaryCallbackMessages intf;
     private ExecutorService executor = Executors.newSingleThreadExecutor(Helper.backgroundThreadFactory);
@@ -60,6 +64,7 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
     private IMAPStore istore = null;
     private IMAPFolder ifolder = null;
     private Message[] imessages = null;
+    private int index; // next search result to materialize, newest first
 
     interface IBoundaryCallbackMessages {
         void onLoading();
@@ -69,10 +74,11 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
         void onError(Context context, Throwable ex);
     }
 
-    BoundaryCallbackMessages(Context context, LifecycleOwner owner, long folder, String search, IBoundaryCallbackMessages intf) {
+    BoundaryCallbackMessages(Context context, LifecycleOwner owner, long folder, String search, int pageSize, IBoundaryCallbackMessages intf) {
         this.context = context;
         this.fid = folder;
         this.search = search;
+        this.pageSize = pageSize;
         this.mainHandler = new Handler(context.getMainLooper());
         this.intf = intf;
 
@@ -157,17 +163,54 @@ public class BoundaryCallbackMessages extends PagedList.BoundaryCallback<TupleMe
                                                         new SubjectTerm(search),
                                                         new BodyTerm(search)))));
                         Log.i(Helper.TAG, "Boundary found messages=" + imessages.length);
+                        index = imessages.length - 1;
                     }
 
-                    int index = imessages.length - 1;
-                    while (index >= 0) {
-                        if (imessages[index].getReceivedDate().getTime() < before) {
-                            Log.i(Helper.TAG, "Boundary sync uid=" + ifolder.getUID(imessages[index]));
-                            ServiceSynchronize.synchronizeMessage(context, folder, ifolder, (IMAPMessage) imessages[index], true);
-                            break;
+                    // Materialize the next page of results with one fetch of the headers
+                    // Results which were in the search already don't count, so the list will grow
+                    int added = 0;
+                    while (added == 0 && index >= 0) {
+                        int count = Math.min(pageSize, index + 1);
+                        Message[] page = new Message[count];
+                        for (int i = 0; i < count; i++)
+                            page[i] = imessages[index - i];
+                        index -= count;
+
+                        Log.i(Helper.TAG, "Boundary fetching messages=" + count + " remaining=" + (index + 1));
+                        UidSet stored = ServiceSynchronize.fetchMessages(context, folder, ifolder, page, true, null);
+
+                        List<ServiceSynchronize.ParsedMessage> parsed = new ArrayList<>();
+                        for (Message imessage : page)
+                            try {
+                                ServiceSynchronize.ParsedMessage p = ServiceSynchronize.parseMessage(context, folder, ifolder, (IMAPMessage) imessage, true, stored);
+                                if (p != null)
+                                    parsed.add(p);
+                            } catch (MessageRemovedException ex) {
+                                Log.w(Helper.TAG, "Boundary " + ex + "\n" + Log.getStackTraceString(ex));
+                            }
+
+                        ServiceSynchronize.storeMessages(context, folder, parsed);
+
+                        // Add the results to the search, including messages which were stored already
+                        long time = new Date().getTime();
+                        try {
+                            db.beginTransaction();
+                            for (ServiceSynchronize.ParsedMessage p : parsed)
+                                if (p.id != null) {
+                                    EntitySearch result = new EntitySearch();
+                                    result.folder = folder.id;
+                                    result.query = search;
+                                    result.message = p.id;
+                                    result.time = time;
+                                    if (db.search().insertSearch(result) >= 0)
+                                        added++;
+                                }
+                            db.setTransactionSuccessful();
+                        } finally {
+                            db.endTransaction();
                         }
-                        index--;
                     }
+                    Log.i(Helper.TAG, "Boundary added messages=" + added);
 
                     EntityOperation.process(context); // download small attachments
 
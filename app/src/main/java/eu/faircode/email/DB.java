@@ -45,7 +45,7 @@ import androidx.sqlite.db.SupportSQLiteDatabase;
 // https://developer.android.com/topic/libraries/architecture/room.html
 
 @Database(
-        version = 10,
+        version = 22,
         entities = {
                 EntityIdentity.class,
                 EntityAccount.class,
@@ -54,7 +54,11 @@ import androidx.sqlite.db.SupportSQLiteDatabase;
                 EntityAttachment.class,
                 EntityOperation.class,
                 EntityAnswer.class,
-                EntityLog.class
+                EntityLog.class,
+                EntityOrphan.class,
+                EntityBody.class,
+                EntitySearch.class,
+                EntitySummary.class
         }
 )
 
@@ -76,6 +80,10 @@ public abstract class DB extends RoomDatabase {
 
     public abstract DaoLog log();
 
+    public abstract DaoBody body();
+
+    public abstract DaoSearch search();
+
     private static DB sInstance;
 
     private static final String DB_NAME = "email";
@@ -111,6 +119,16 @@ public abstract class DB extends RoomDatabase {
     private static DB migrate(RoomDatabase.Builder<DB> builder) {
         return builder
                 .addCallback(new Callback() {
+                    @Override
+                    public void onCreate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "Database create");
+                        super.onCreate(db);
+                        createTriggers(db);
+                        SearchIndex.create(db);
+                        createSummaryTriggers(db);
+                        createCounterTriggers(db);
+                    }
+
                     @Override
                     public void onOpen(SupportSQLiteDatabase db) {
                         Log.i(Helper.TAG, "Database version=" + db.getVersion());
@@ -184,9 +202,322 @@ public abstract class DB extends RoomDatabase {
                         db.execSQL("UPDATE `folder` SET unified = 1 WHERE type = '" + EntityFolder.INBOX + "'");
                     }
                 })
+                .addMigrations(new Migration(10, 11) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("ALTER TABLE `folder` ADD COLUMN `uid_validity` INTEGER");
+                        db.execSQL("ALTER TABLE `folder` ADD COLUMN `highest_modseq` INTEGER");
+                    }
+                })
+                .addMigrations(new Migration(11, 12) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("ALTER TABLE `folder` ADD COLUMN `download` INTEGER NOT NULL DEFAULT 1");
+                        db.execSQL("ALTER TABLE `message` ADD COLUMN `size` INTEGER");
+                        db.execSQL("ALTER TABLE `message` ADD COLUMN `content` INTEGER NOT NULL DEFAULT 1");
+                    }
+                })
+                .addMigrations(new Migration(12, 13) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("ALTER TABLE `operation` ADD COLUMN `seen` INTEGER");
+                        db.execSQL("ALTER TABLE `operation` ADD COLUMN `target` INTEGER");
+                        db.execSQL("ALTER TABLE `operation` ADD COLUMN `sequence` INTEGER");
+                        db.execSQL("ALTER TABLE `operation` ADD COLUMN `priority` INTEGER NOT NULL DEFAULT " + EntityOperation.PRIORITY_NORMAL);
+                        db.execSQL("ALTER TABLE `operation` ADD COLUMN `attempts` INTEGER NOT NULL DEFAULT 0");
+                        db.execSQL("ALTER TABLE `operation` ADD COLUMN `retry` INTEGER");
+
+                        // Move the arguments into typed columns
+                        Cursor cursor = null;
+                        try {
+                            cursor = db.query("SELECT id, name, args FROM operation");
+                            while (cursor.moveToNext()) {
+                                long id = cursor.getLong(0);
+                                String name = cursor.getString(1);
+                                try {
+                                    JSONArray jargs = new JSONArray(cursor.getString(2));
+                                    if (EntityOperation.SEEN.equals(name))
+                                        db.execSQL("UPDATE operation SET seen = ? WHERE id = ?",
+                                                new Object[]{jargs.getBoolean(0) ? 1 : 0, id});
+                                    else if (EntityOperation.MOVE.equals(name))
+                                        db.execSQL("UPDATE operation SET target = ? WHERE id = ?",
+                                                new Object[]{jargs.getLong(0), id});
+                                    else if (EntityOperation.ATTACHMENT.equals(name))
+                                        db.execSQL("UPDATE operation SET sequence = ? WHERE id = ?",
+                                                new Object[]{jargs.getInt(0), id});
+                                    db.execSQL("UPDATE operation SET priority = ? WHERE id = ?",
+                                            new Object[]{EntityOperation.getPriority(name), id});
+                                } catch (JSONException ex) {
+                                    Log.e(Helper.TAG, "Operation id=" + id + " " + ex + "\n" + Log.getStackTraceString(ex));
+                                }
+                            }
+                        } finally {
+                            if (cursor != null)
+                                cursor.close();
+                        }
+                    }
+                })
+                .addMigrations(new Migration(13, 14) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("ALTER TABLE `attachment` ADD COLUMN `section` TEXT");
+                        db.execSQL("ALTER TABLE `attachment` ADD COLUMN `encoding` TEXT");
+                    }
+                })
+                .addMigrations(new Migration(14, 15) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("ALTER TABLE `attachment` ADD COLUMN `hash` TEXT");
+                        db.execSQL("CREATE  INDEX `index_attachment_hash` ON `attachment` (`hash`)");
+                        db.execSQL("CREATE TABLE IF NOT EXISTS `orphan` (`hash` TEXT NOT NULL, PRIMARY KEY(`hash`))");
+                        createTriggers(db);
+                    }
+                })
+                .addMigrations(new Migration(15, 16) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("CREATE TABLE IF NOT EXISTS `body` (`message` INTEGER NOT NULL, `segment` INTEGER NOT NULL, `position` INTEGER NOT NULL, `length` INTEGER NOT NULL, `size` INTEGER NOT NULL, `compressed` INTEGER NOT NULL, PRIMARY KEY(`message`), FOREIGN KEY(`message`) REFERENCES `message`(`id`) ON UPDATE NO ACTION ON DELETE CASCADE )");
+                        db.execSQL("CREATE  INDEX `index_body_segment` ON `body` (`segment`)");
+                    }
+                })
+                .addMigrations(new Migration(16, 17) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        // The primary key changes, so the table needs to be rebuilt
+                        db.execSQL("CREATE TABLE IF NOT EXISTS `body_new` (`message` INTEGER NOT NULL, `variant` INTEGER NOT NULL, `version` TEXT, `segment` INTEGER NOT NULL, `position` INTEGER NOT NULL, `length` INTEGER NOT NULL, `size` INTEGER NOT NULL, `compressed` INTEGER NOT NULL, PRIMARY KEY(`message`, `variant`), FOREIGN KEY(`message`) REFERENCES `message`(`id`) ON UPDATE NO ACTION ON DELETE CASCADE )");
+                        db.execSQL("INSERT INTO `body_new` (`message`, `variant`, `segment`, `position`, `length`, `size`, `compressed`)" +
+                                " SELECT `message`, " + BodyStore.RAW + ", `segment`, `position`, `length`, `size`, `compressed` FROM `body`");
+                        db.execSQL("DROP TABLE `body`");
+                        db.execSQL("ALTER TABLE `body_new` RENAME TO `body`");
+                        db.execSQL("CREATE  INDEX `index_body_segment` ON `body` (`segment`)");
+                    }
+                })
+                .addMigrations(new Migration(17, 18) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        // Existing messages are indexed when their folder is searched
+                        SearchIndex.create(db);
+                    }
+                })
+                .addMigrations(new Migration(18, 19) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("CREATE TABLE IF NOT EXISTS `search` (`folder` INTEGER NOT NULL, `query` TEXT NOT NULL, `message` INTEGER NOT NULL, `time` INTEGER NOT NULL, PRIMARY KEY(`folder`, `query`, `message`), FOREIGN KEY(`folder`) REFERENCES `folder`(`id`) ON UPDATE NO ACTION ON DELETE CASCADE , FOREIGN KEY(`message`) REFERENCES `message`(`id`) ON UPDATE NO ACTION ON DELETE CASCADE )");
+                        db.execSQL("CREATE  INDEX `index_search_message` ON `search` (`message`)");
+                        db.execSQL("CREATE  INDEX `index_search_time` ON `search` (`time`)");
+                    }
+                })
+                .addMigrations(new Migration(19, 20) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("CREATE TABLE IF NOT EXISTS `summary` (`folder` INTEGER NOT NULL, `thread` TEXT NOT NULL, `account` INTEGER, `message` INTEGER NOT NULL, `unified` INTEGER NOT NULL, `count` INTEGER NOT NULL, `unseen` INTEGER NOT NULL, `attachments` INTEGER NOT NULL, `received` INTEGER NOT NULL, `sent` INTEGER, PRIMARY KEY(`folder`, `thread`))");
+                        db.execSQL("CREATE  INDEX `index_summary_thread` ON `summary` (`thread`)");
+                        db.execSQL("CREATE  INDEX `index_summary_message` ON `summary` (`message`)");
+                        db.execSQL("CREATE  INDEX `index_summary_folder_received_sent` ON `summary` (`folder`, `received`, `sent`)");
+                        db.execSQL("CREATE  INDEX `index_summary_unified_received_sent` ON `summary` (`unified`, `received`, `sent`)");
+                        createSummaryTriggers(db);
+                        rebuildSummary(db);
+                    }
+                })
+                .addMigrations(new Migration(20, 21) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("ALTER TABLE `folder` ADD COLUMN `messages` INTEGER NOT NULL DEFAULT 0");
+                        db.execSQL("ALTER TABLE `folder` ADD COLUMN `unseen` INTEGER NOT NULL DEFAULT 0");
+                        db.execSQL("UPDATE folder" +
+                                " SET messages = (SELECT COUNT(message.id) FROM message WHERE message.folder = folder.id AND NOT message.ui_hide)" +
+                                " , unseen = (SELECT COUNT(message.id) FROM message WHERE message.folder = folder.id AND NOT message.ui_hide AND NOT message.ui_seen)");
+                        createCounterTriggers(db);
+                    }
+                })
+                .addMigrations(new Migration(21, 22) {
+                    @Override
+                    public void migrate(SupportSQLiteDatabase db) {
+                        Log.i(Helper.TAG, "DB migration from version " + startVersion + " to " + endVersion);
+                        db.execSQL("DROP TRIGGER IF EXISTS message_summary_insert");
+                        db.execSQL("DROP TRIGGER IF EXISTS message_summary_update");
+                        db.execSQL("DROP TRIGGER IF EXISTS message_summary_move");
+                        db.execSQL("DROP TRIGGER IF EXISTS message_summary_delete");
+                        createSummaryTriggers(db);
+                    }
+                })
                 .build();
     }
 
+    private static void createTriggers(SupportSQLiteDatabase db) {
+        // Reference counting of stored attachment content
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS attachment_insert" +
+                " AFTER INSERT ON attachment" +
+                " WHEN NEW.hash IS NOT NULL" +
+                " BEGIN" +
+                "  DELETE FROM orphan WHERE hash = NEW.hash;" +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS attachment_update" +
+                " AFTER UPDATE OF hash ON attachment" +
+                " BEGIN" +
+                "  DELETE FROM orphan WHERE hash = NEW.hash;" +
+                "  INSERT OR IGNORE INTO orphan (hash) SELECT OLD.hash" +
+                "   WHERE OLD.hash IS NOT NULL" +
+                "   AND NOT EXISTS (SELECT id FROM attachment WHERE hash = OLD.hash);" +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS attachment_delete" +
+                " AFTER DELETE ON attachment" +
+                " WHEN OLD.hash IS NOT NULL" +
+                " BEGIN" +
+                "  INSERT OR IGNORE INTO orphan (hash) SELECT OLD.hash" +
+                "   WHERE NOT EXISTS (SELECT id FROM attachment WHERE hash = OLD.hash);" +
+                " END");
+    }
+
+    private static void createSummaryTriggers(SupportSQLiteDatabase db) {
+        // Conversation summaries
+        // Messages with and without thread have triggers of their own, so the rows of a conversation are selected with an index
+        for (boolean threaded : new boolean[]{true, false}) {
+            String kind = (threaded ? "thread" : "message");
+            String when = (threaded ? ".thread IS NOT NULL" : ".thread IS NULL");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS message_summary_insert_" + kind +
+                    " AFTER INSERT ON message" +
+                    " WHEN NEW" + when +
+                    " BEGIN" +
+                    summarize("NEW", threaded) +
+                    " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS message_summary_update_" + kind +
+                    " AFTER UPDATE OF account, folder, thread, received, sent, ui_seen, ui_hide ON message" +
+                    " WHEN NEW" + when +
+                    " AND (OLD.account IS NOT NEW.account OR OLD.folder IS NOT NEW.folder OR OLD.thread IS NOT NEW.thread" +
+                    "  OR OLD.received IS NOT NEW.received OR OLD.sent IS NOT NEW.sent" +
+                    "  OR OLD.ui_seen IS NOT NEW.ui_seen OR OLD.ui_hide IS NOT NEW.ui_hide)" +
+                    " BEGIN" +
+                    summarize("NEW", threaded) +
+                    " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS message_summary_move_" + kind +
+                    " AFTER UPDATE OF account, thread ON message" +
+                    " WHEN OLD" + when +
+                    " AND (OLD.account IS NOT NEW.account OR OLD.thread IS NOT NEW.thread)" +
+                    " BEGIN" +
+                    summarize("OLD", threaded) +
+                    " END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS message_summary_delete_" + kind +
+                    " AFTER DELETE ON message" +
+                    " WHEN OLD" + when +
+                    " BEGIN" +
+                    summarize("OLD", threaded) +
+                    " END");
+        }
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS attachment_summary_insert" +
+                " AFTER INSERT ON attachment" +
+                " BEGIN" +
+                "  UPDATE summary SET attachments = attachments + 1 WHERE message = NEW.message;" +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS attachment_summary_delete" +
+                " AFTER DELETE ON attachment" +
+                " BEGIN" +
+                "  UPDATE summary SET attachments = attachments - 1 WHERE message = OLD.message;" +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS folder_summary_unified" +
+                " AFTER UPDATE OF unified ON folder" +
+                " BEGIN" +
+                "  UPDATE summary SET unified = NEW.unified WHERE folder = NEW.id;" +
+                " END");
+    }
+
+    private static void createCounterTriggers(SupportSQLiteDatabase db) {
+        // Message counters of folders
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS message_count_insert" +
+                " AFTER INSERT ON message" +
+                " WHEN NOT NEW.ui_hide" +
+                " BEGIN" +
+                "  UPDATE folder SET messages = messages + 1" +
+                "   , unseen = unseen + (CASE WHEN NEW.ui_seen THEN 0 ELSE 1 END)" +
+                "   WHERE id = NEW.folder;" +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS message_count_update" +
+                " AFTER UPDATE OF folder, ui_seen, ui_hide ON message" +
+                " WHEN OLD.folder IS NOT NEW.folder OR OLD.ui_seen IS NOT NEW.ui_seen OR OLD.ui_hide IS NOT NEW.ui_hide" +
+                " BEGIN" +
+                "  UPDATE folder SET messages = messages - 1" +
+                "   , unseen = unseen - (CASE WHEN OLD.ui_seen THEN 0 ELSE 1 END)" +
+                "   WHERE id = OLD.folder AND NOT OLD.ui_hide;" +
+                "  UPDATE folder SET messages = messages + 1" +
+                "   , unseen = unseen + (CASE WHEN NEW.ui_seen THEN 0 ELSE 1 END)" +
+                "   WHERE id = NEW.folder AND NOT NEW.ui_hide;" +
+                " END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS message_count_delete" +
+                " AFTER DELETE ON message" +
+                " WHEN NOT OLD.ui_hide" +
+                " BEGIN" +
+                "  UPDATE folder SET messages = messages - 1" +
+                "   , unseen = unseen - (CASE WHEN OLD.ui_seen THEN 0 ELSE 1 END)" +
+                "   WHERE id = OLD.folder;" +
+                " END");
+    }
+
+    // Rebuilds the summaries of the conversation of the NEW or OLD message row
+    // The summary of a folder shows the latest message of the conversation in that folder,
+    // like the grouped queries did, and counts the messages of the conversation in all folders
+    private static String summarize(String row, boolean threaded) {
+        if (!threaded)
+            return "  DELETE FROM summary WHERE thread = 'id:' || " + row + ".id AND account IS " + row + ".account;" +
+                    "  INSERT INTO summary" + SUMMARY_COLUMNS +
+                    "   SELECT m.folder, 'id:' || m.id, m.account, m.id" +
+                    "   , COALESCE((SELECT f.unified FROM folder f WHERE f.id = m.folder), 0)" +
+                    "   , 1, CASE WHEN m.ui_seen THEN 0 ELSE 1 END" +
+                    "   , (SELECT COUNT(a.id) FROM attachment a WHERE a.message = m.id)" +
+                    "   , m.received, m.sent" +
+                    "   FROM message m" +
+                    "   WHERE m.id = " + row + ".id AND m.thread IS NULL AND NOT m.ui_hide;";
+
+        // The unary plus keeps SQLite from choosing the much less selective account or folder index
+        String thread = "thread = " + row + ".thread AND ";
+        return "  DELETE FROM summary WHERE " + thread + "account IS " + row + ".account;" +
+                "  INSERT INTO summary" + SUMMARY_COLUMNS +
+                "   SELECT m.folder, m.thread, m.account, m.id" +
+                "   , COALESCE((SELECT f.unified FROM folder f WHERE f.id = m.folder), 0)" +
+                "   , t.count, t.unseen" +
+                "   , (SELECT COUNT(a.id) FROM attachment a WHERE a.message = m.id)" +
+                "   , m.received, m.sent" +
+                "   FROM message m" +
+                "   , (SELECT COUNT(c.id) AS count, COALESCE(SUM(CASE WHEN c.ui_seen THEN 0 ELSE 1 END), 0) AS unseen" +
+                "    FROM message c WHERE c." + thread + "+c.account IS " + row + ".account AND NOT c.ui_hide) t" +
+                "   WHERE m." + thread + "+m.account IS " + row + ".account AND NOT m.ui_hide" +
+                "   AND m.id = (SELECT MAX(l.id) FROM message l" +
+                "    WHERE l." + thread + "+l.account IS " + row + ".account AND +l.folder = m.folder AND NOT l.ui_hide);";
+    }
+
+    private static final String SUMMARY_COLUMNS =
+            " (folder, thread, account, message, unified, count, unseen, attachments, received, sent)";
+
+    // Fills the summaries at once
+    private static void rebuildSummary(SupportSQLiteDatabase db) {
+        String key = "CASE WHEN m.thread IS NULL THEN 'id:' || m.id ELSE m.thread END";
+        db.execSQL("DELETE FROM summary");
+        db.execSQL("INSERT INTO summary" + SUMMARY_COLUMNS +
+                " SELECT m.folder, " + key + ", m.account, m.id" +
+                " , COALESCE((SELECT f.unified FROM folder f WHERE f.id = m.folder), 0)" +
+                " , t.count, t.unseen" +
+                " , (SELECT COUNT(a.id) FROM attachment a WHERE a.message = m.id)" +
+                " , m.received, m.sent" +
+                " FROM message m" +
+                " JOIN (SELECT c.account, CASE WHEN c.thread IS NULL THEN 'id:' || c.id ELSE c.thread END AS thread" +
+                "  , COUNT(c.id) AS count, SUM(CASE WHEN c.ui_seen THEN 0 ELSE 1 END) AS unseen" +
+                "  FROM message c WHERE NOT c.ui_hide GROUP BY 1, 2) t" +
+                "  ON t.account IS m.account AND t.thread = " + key +
+                " WHERE NOT m.ui_hide" +
+                " AND (m.thread IS NULL OR m.id = (SELECT MAX(l.id) FROM message l" +
+                "  WHERE l.thread = m.thread AND l.account IS m.account AND l.folder = m.folder AND NOT l.ui_hide))");
+    }
+
     public static class Converters {
         @TypeConverter
         public static String[] fromStringArray(String value) {
@@ -63,6 +63,18 @@ public interface DaoAttachment {
             " WHERE id = :id")
     void setProgress(long id, Integer progress);
 
+    @Query("SELECT COUNT(id)" +
+            " FROM attachment" +
+            " WHERE hash = :hash")
+    int countAttachments(String hash);
+
+    @Query("SELECT hash FROM orphan")
+    List<String> getOrphans();
+
+    @Query("DELETE FROM orphan" +
+            " WHERE hash = :hash")
+    int deleteOrphan(String hash);
+
     @Insert
     long insertAttachment(EntityAttachment attachment);
 
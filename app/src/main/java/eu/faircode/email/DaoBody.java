@@ -0,0 +1,61 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+import java.util.List;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+@Dao
+public interface DaoBody {
+    @Query("SELECT * FROM body" +
+            " WHERE message = :message" +
+            " AND variant = :variant")
+    EntityBody getBody(long message, int variant);
+
+    @Query("SELECT * FROM body" +
+            " WHERE segment = :segment" +
+            " ORDER BY position")
+    List<EntityBody> getBodies(int segment);
+
+    @Query("SELECT COALESCE(SUM(length), 0)" +
+            " FROM body" +
+            " WHERE segment = :segment")
+    long getSegmentUsage(int segment);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertBody(EntityBody body);
+
+    @Query("UPDATE body SET segment = :segment, position = :position" +
+            " WHERE message = :message" +
+            " AND variant = :variant" +
+            " AND segment = :from" +
+            " AND position = :at")
+    int moveBody(long message, int variant, int from, long at, int segment, long position);
+
+    @Query("DELETE FROM body" +
+            " WHERE message = :message" +
+            " AND variant <> :variant")
+    int deleteVariants(long message, int variant);
+}
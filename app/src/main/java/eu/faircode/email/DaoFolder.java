@@ -45,35 +45,24 @@ public interface DaoFolder {
     List<EntityFolder> getUserFolders(long account);
 
     @Query("SELECT folder.*, account.name AS accountName" +
-            ", COUNT(message.id) AS messages" +
-            ", SUM(CASE WHEN message.ui_seen = 0 THEN 1 ELSE 0 END) AS unseen" +
             " FROM folder" +
             " LEFT JOIN account ON account.id = folder.account" +
-            " LEFT JOIN message ON message.folder = folder.id AND NOT message.ui_hide" +
-            " WHERE folder.account = :account OR folder.account IS NULL" +
-            " GROUP BY folder.id")
+            " WHERE folder.account = :account OR folder.account IS NULL")
     LiveData<List<TupleFolderEx>> liveFolders(long account);
 
     @Query("SELECT folder.*, account.name AS accountName" +
-            ", COUNT(message.id) AS messages" +
-            ", SUM(CASE WHEN message.ui_seen = 0 THEN 1 ELSE 0 END) AS unseen" +
             " FROM folder" +
             " JOIN account ON account.id = folder.account" +
-            " JOIN message ON message.folder = folder.id AND NOT message.ui_hide" +
             " WHERE account.`synchronize`" +
-            " AND folder.unified" +
-            " GROUP BY folder.id")
+            " AND folder.unified")
     LiveData<List<TupleFolderEx>> liveUnified();
 
     @Query("SELECT folder.* FROM folder WHERE folder.id = :id")
     LiveData<EntityFolder> liveFolder(long id);
 
     @Query("SELECT folder.*, account.name AS accountName" +
-            ", COUNT(message.id) AS messages" +
-            ", SUM(CASE WHEN message.ui_seen = 0 THEN 1 ELSE 0 END) AS unseen" +
             " FROM folder" +
             " LEFT JOIN account ON account.id = folder.account" +
-            " LEFT JOIN message ON message.folder = folder.id AND NOT message.ui_hide" +
             " WHERE folder.id = :id")
     LiveData<TupleFolderEx> liveFolderEx(long id);
 
@@ -105,6 +94,9 @@ public interface DaoFolder {
     @Query("UPDATE folder SET error = :error WHERE id = :id")
     int setFolderError(long id, String error);
 
+    @Query("UPDATE folder SET uid_validity = :uid_validity, highest_modseq = :highest_modseq WHERE id = :id")
+    int setFolderResync(long id, Long uid_validity, Long highest_modseq);
+
     @Query("UPDATE folder SET type = :type WHERE id = :id")
     int setFolderType(long id, String type);
 
@@ -114,8 +106,16 @@ public interface DaoFolder {
             " AND type = :type")
     int setFolderUser(long account, String type);
 
-    @Query("UPDATE folder SET synchronize = :synchronize, unified = :unified, after = :after WHERE id = :id")
-    int setFolderProperties(long id, boolean synchronize, boolean unified, int after);
+    @Query("UPDATE folder SET synchronize = :synchronize, unified = :unified, after = :after, download = :download WHERE id = :id")
+    int setFolderProperties(long id, boolean synchronize, boolean unified, int after, boolean download);
+
+    // Corrects message counters which got out of step with the messages, returns the number of corrected folders
+    @Query("UPDATE folder" +
+            " SET messages = (SELECT COUNT(message.id) FROM message WHERE message.folder = folder.id AND NOT message.ui_hide)" +
+            " , unseen = (SELECT COUNT(message.id) FROM message WHERE message.folder = folder.id AND NOT message.ui_hide AND NOT message.ui_seen)" +
+            " WHERE messages <> (SELECT COUNT(message.id) FROM message WHERE message.folder = folder.id AND NOT message.ui_hide)" +
+            " OR unseen <> (SELECT COUNT(message.id) FROM message WHERE message.folder = folder.id AND NOT message.ui_hide AND NOT message.ui_seen)")
+    int repairFolderCounts();
 
     @Query("DELETE FROM folder WHERE account= :account AND name = :name")
     void deleteFolder(Long account, String name);
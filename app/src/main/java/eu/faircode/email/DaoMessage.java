@@ -31,6 +31,8 @@ import androidx.room.Update;
 @Dao
 public interface DaoMessage {
 
+    // The debug variants group all messages, including hidden messages, instead of reading the summaries
+
     // About 'dummy': "When the min() or max() aggregate functions are used in an aggregate query,
     // all bare columns in the result set take values from the input row which also contains the minimum or maximum."
     // https://www.sqlite.org/lang_select.html
@@ -44,11 +46,26 @@ public interface DaoMessage {
             " JOIN account ON account.id = message.account" +
             " JOIN folder ON folder.id = message.folder" +
             " WHERE account.`synchronize`" +
-            " AND (NOT message.ui_hide OR :debug)" +
             " GROUP BY CASE WHEN message.thread IS NULL THEN message.id ELSE message.thread END" +
             " HAVING SUM(unified) > 0" +
             " ORDER BY message.received DESC")
-    DataSource.Factory<Integer, TupleMessageEx> pagedUnifiedInbox(boolean debug);
+    DataSource.Factory<Integer, TupleMessageEx> pagedUnifiedInboxDebug();
+
+    @Query("SELECT message.*, account.name AS accountName, folder.name as folderName, folder.type as folderType" +
+            ", summary.count, summary.unseen, summary.attachments" +
+            " FROM summary" +
+            " JOIN message ON message.id = summary.message" +
+            " JOIN account ON account.id = summary.account" +
+            " JOIN folder ON folder.id = summary.folder" +
+            " WHERE summary.unified = 1" + // comparison, so the index is used
+            " AND account.`synchronize`" +
+            // a conversation in several unified folders is shown once, from the folder with the latest message
+            " AND NOT EXISTS (SELECT s.folder FROM summary s" +
+            "     WHERE s.thread = summary.thread AND s.account = summary.account" +
+            "     AND s.unified = 1 AND s.folder <> summary.folder" +
+            "     AND (s.received > summary.received OR (s.received = summary.received AND s.folder > summary.folder)))" +
+            " ORDER BY summary.received DESC, summary.sent DESC")
+    DataSource.Factory<Integer, TupleMessageEx> pagedUnifiedInbox();
 
     @Query("SELECT message.*, account.name AS accountName, folder.name as folderName, folder.type as folderType" +
             ", COUNT(message.id) as count" +
@@ -59,12 +76,36 @@ public interface DaoMessage {
             " LEFT JOIN account ON account.id = message.account" +
             " JOIN folder ON folder.id = message.folder" +
             " LEFT JOIN folder f ON f.id = :folder" +
-            " WHERE (NOT message.ui_hide OR :debug)" +
-            " AND (NOT :found OR ui_found = :found)" +
             " GROUP BY CASE WHEN message.thread IS NULL THEN message.id ELSE message.thread END" +
             " HAVING SUM(CASE WHEN folder.id = :folder THEN 1 ELSE 0 END) > 0" +
             " ORDER BY message.received DESC, message.sent DESC")
-    DataSource.Factory<Integer, TupleMessageEx> pagedFolder(long folder, boolean found, boolean debug);
+    DataSource.Factory<Integer, TupleMessageEx> pagedFolderDebug(long folder);
+
+    @Query("SELECT message.*, account.name AS accountName, folder.name as folderName, folder.type as folderType" +
+            ", summary.count, summary.unseen, summary.attachments" +
+            " FROM summary" +
+            " JOIN message ON message.id = summary.message" +
+            " LEFT JOIN account ON account.id = summary.account" +
+            " JOIN folder ON folder.id = summary.folder" +
+            " WHERE summary.folder = :folder" +
+            " ORDER BY summary.received DESC, summary.sent DESC")
+    DataSource.Factory<Integer, TupleMessageEx> pagedFolder(long folder);
+
+    @Query("SELECT message.*, account.name AS accountName, folder.name as folderName, folder.type as folderType" +
+            ", COUNT(message.id) as count" +
+            ", SUM(CASE WHEN message.ui_seen THEN 0 ELSE 1 END) as unseen" +
+            ", (SELECT COUNT(a.id) FROM attachment a WHERE a.message = message.id) AS attachments" +
+            ", MAX(message.id) as dummy" +
+            " FROM search" +
+            " JOIN message ON message.id = search.message" +
+            " LEFT JOIN account ON account.id = message.account" +
+            " JOIN folder ON folder.id = message.folder" +
+            " WHERE search.folder = :folder" +
+            " AND search.`query` = :query" +
+            " AND NOT message.ui_hide" +
+            " GROUP BY CASE WHEN message.thread IS NULL THEN message.id ELSE message.thread END" +
+            " ORDER BY message.received DESC, message.sent DESC")
+    DataSource.Factory<Integer, TupleMessageEx> pagedSearch(long folder, String query);
 
     @Query("SELECT message.*, account.name AS accountName, folder.name as folderName, folder.type as folderType" +
             ", 1 AS count" +
@@ -108,11 +149,6 @@ public interface DaoMessage {
             " AND folder.type <> '" + EntityFolder.OUTBOX + "'")
     List<EntityMessage> getMessageByThread(long account, String thread);
 
-    @Query("SELECT id FROM message" +
-            " WHERE folder = :folder" +
-            " ORDER BY message.received DESC, message.sent DESC")
-    List<Long> getMessageIDs(long folder);
-
     @Query("SELECT message.*, account.name AS accountName, folder.name as folderName, folder.type as folderType" +
             ", (SELECT COUNT(m1.id) FROM message m1 WHERE m1.account = message.account AND m1.thread = message.thread AND NOT m1.ui_hide) AS count" +
             ", (SELECT COUNT(m2.id) FROM message m2 WHERE m2.account = message.account AND m2.thread = message.thread AND NOT m2.ui_hide AND NOT m2.ui_seen) AS unseen" +
@@ -133,12 +169,16 @@ public interface DaoMessage {
             " ORDER BY message.received")
     LiveData<List<EntityMessage>> liveUnseenUnified();
 
-    @Query("SELECT uid FROM message" +
+    @Query("SELECT * FROM message" +
             " WHERE folder = :folder" +
-            " AND received >= :received" +
+            " AND NOT content" +
             " AND NOT uid IS NULL" +
-            " AND NOT ui_found" /* keep found messages */)
-    List<Long> getUids(long folder, long received);
+            " AND id NOT IN (SELECT message FROM operation WHERE name = '" + EntityOperation.BODY + "')" +
+            " ORDER BY received DESC")
+    List<EntityMessage> getMessagesWithoutContent(long folder);
+
+    @Query("DELETE FROM message WHERE folder = :folder AND uid IN (:uids)")
+    int deleteMessages(long folder, long[] uids);
 
     @Insert
     long insertMessage(EntityMessage message);
@@ -161,11 +201,8 @@ public interface DaoMessage {
     @Query("UPDATE message SET error = :error WHERE id = :id")
     int setMessageError(long id, String error);
 
-    @Query("UPDATE message SET ui_found = :found WHERE id = :id")
-    int setMessageFound(long id, boolean found);
-
-    @Query("UPDATE message SET ui_found = 0 WHERE folder = :folder")
-    int resetFound(long folder);
+    @Query("UPDATE message SET content = :content WHERE id = :id")
+    int setMessageContent(long id, boolean content);
 
     @Query("UPDATE message SET headers = :headers WHERE id = :id")
     int setMessageHeaders(long id, String headers);
@@ -173,12 +210,12 @@ public interface DaoMessage {
     @Query("DELETE FROM message WHERE id = :id")
     int deleteMessage(long id);
 
-    @Query("DELETE FROM message WHERE folder = :folder AND uid = :uid")
-    int deleteMessage(long folder, long uid);
-
     @Query("DELETE FROM message WHERE folder = :folder")
     int deleteMessages(long folder);
 
+    @Query("DELETE FROM message WHERE folder = :folder AND NOT uid IS NULL")
+    int deleteRemoteMessages(long folder);
+
     @Query("DELETE FROM message WHERE folder = :folder AND received < :received AND NOT uid IS NULL")
     int deleteMessagesBefore(long folder, long received);
 
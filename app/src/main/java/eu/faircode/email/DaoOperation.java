@@ -31,8 +31,26 @@ public interface DaoOperation {
     @Query("SELECT * FROM operation WHERE message = :message ORDER BY id")
     LiveData<List<EntityOperation>> getOperationsByMessage(long message);
 
-    @Query("SELECT * FROM operation WHERE folder = :folder ORDER BY id")
-    List<EntityOperation> getOperationsByFolder(long folder);
+    // Operations of a message wait for earlier, deferred operations of the same message
+    // Messages are ordered by their most urgent operation, operations of a message are kept in order
+    @Query("SELECT operation.* FROM operation" +
+            " JOIN (SELECT message, MIN(priority) AS urgent, MIN(id) AS first FROM operation" +
+            "     WHERE folder = :folder GROUP BY message) AS m ON m.message = operation.message" +
+            " WHERE folder = :folder" +
+            " AND (retry IS NULL OR retry <= :now)" +
+            " AND NOT EXISTS (SELECT o.id FROM operation o" +
+            "     WHERE o.message = operation.message AND o.id < operation.id AND o.retry > :now)" +
+            " ORDER BY m.urgent, m.first, operation.id")
+    List<EntityOperation> getOperationsByFolder(long folder, long now);
+
+    @Query("SELECT priority" +
+            ", COUNT(id) AS operations" +
+            ", SUM(CASE WHEN attempts > 0 THEN 1 ELSE 0 END) AS retrying" +
+            ", MIN(created) AS oldest" +
+            " FROM operation" +
+            " GROUP BY priority" +
+            " ORDER BY priority")
+    List<TupleOperationStats> getOperationStats();
 
     @Query("SELECT * FROM operation ORDER BY id")
     LiveData<List<EntityOperation>> liveOperations();
@@ -43,6 +61,13 @@ public interface DaoOperation {
     @Insert
     long insertOperation(EntityOperation operation);
 
+    // Queued operations are never made less urgent
+    @Query("UPDATE operation SET priority = MIN(priority, :priority) WHERE message = :message AND name = :name")
+    int setOperationPriority(long message, String name, int priority);
+
+    @Query("UPDATE operation SET attempts = :attempts, retry = :retry WHERE id = :id")
+    int setOperationRetry(long id, int attempts, Long retry);
+
     @Query("DELETE FROM operation WHERE id = :id")
     void deleteOperation(long id);
 }
@@ -0,0 +1,57 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+@Dao
+public interface DaoSearch {
+    @Query("SELECT MIN(time) FROM search" +
+            " WHERE folder = :folder" +
+            " AND `query` = :query")
+    Long getSearchTime(long folder, String query);
+
+    @Query("SELECT MIN(message.received) FROM search" +
+            " JOIN message ON message.id = search.message" +
+            " WHERE search.folder = :folder" +
+            " AND search.`query` = :query")
+    Long getSearchOldest(long folder, String query);
+
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    long insertSearch(EntitySearch search);
+
+    @Query("DELETE FROM search" +
+            " WHERE folder = :folder" +
+            " AND `query` = :query")
+    int deleteSearch(long folder, String query);
+
+    // Searches are deleted as a whole, because later results continue from earlier results
+    @Query("DELETE FROM search" +
+            " WHERE EXISTS (SELECT s.time FROM search s" +
+            "  WHERE s.folder = search.folder" +
+            "  AND s.`query` = search.`query`" +
+            "  AND s.time < :before)")
+    int deleteSearches(long before);
+}
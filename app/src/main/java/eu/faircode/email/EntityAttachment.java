@@ -20,8 +20,11 @@ package eu.faircode.email;
 */
 
 import android.content.Context;
+import android.util.Log;
 
 import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
 
 import javax.mail.BodyPart;
 
@@ -41,7 +44,8 @@ import static androidx.room.ForeignKey.CASCADE;
         },
         indices = {
                 @Index(value = {"message"}),
-                @Index(value = {"message", "sequence"}, unique = true)
+                @Index(value = {"message", "sequence"}, unique = true),
+                @Index(value = {"hash"})
         }
 )
 public class EntityAttachment {
@@ -60,16 +64,107 @@ public class EntityAttachment {
     public Integer progress;
     @NonNull
     public Boolean available = false;
+    public String section; // IMAP body part specifier
+    public String encoding; // content transfer encoding
+    public String hash; // SHA-256 of the stored content
 
     @Ignore
     BodyPart part;
 
-    static File getFile(Context context, Long id) {
-        File dir = new File(context.getFilesDir(), "attachments");
+    File getFile(Context context) {
+        if (hash == null) {
+            // Content stored before the content store existed
+            File dir = new File(context.getFilesDir(), "attachments");
+            return new File(dir, Long.toString(id));
+        } else
+            return getFile(context, hash);
+    }
+
+    static File getFile(Context context, String hash) {
+        // Shard by the first two bytes of the hash to keep directories small
+        File dir = new File(context.getFilesDir(),
+                "blobs" + File.separator + hash.substring(0, 2) + File.separator + hash.substring(2, 4));
+        dir.mkdirs();
+        return new File(dir, hash);
+    }
+
+    static File getTempFile(Context context, Long id) {
+        File dir = new File(context.getFilesDir(), "temp");
+        dir.mkdir();
+        return new File(dir, Long.toString(id));
+    }
+
+    static File getPartFile(Context context, Long id) {
+        File dir = new File(context.getFilesDir(), "downloads");
         dir.mkdir();
         return new File(dir, Long.toString(id));
     }
 
+    // Moves written content into the content store and stores the attachment as available
+    // Identical content is stored only once
+    void store(Context context, DB db, File file) throws IOException {
+        String hash;
+        try {
+            hash = Helper.sha256(file);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+
+        // Purging content runs in a transaction too, so the reference and the content are consistent
+        String previous = this.hash;
+        boolean stored = false;
+        try {
+            db.beginTransaction();
+
+            this.hash = hash;
+            this.available = true;
+            db.attachment().updateAttachment(this);
+
+            File target = getFile(context, hash);
+            if (target.exists()) {
+                Log.i(Helper.TAG, "Stored attachment id=" + id + " existing hash=" + hash);
+                file.delete();
+            } else if (file.renameTo(target))
+                Log.i(Helper.TAG, "Stored attachment id=" + id + " hash=" + hash);
+            else
+                throw new IOException("Error storing " + target);
+
+            db.setTransactionSuccessful();
+            stored = true;
+        } finally {
+            db.endTransaction();
+            if (!stored) {
+                this.hash = previous;
+                this.available = false;
+            }
+        }
+    }
+
+    // Deletes content which is not referenced by any attachment anymore
+    static void purge(Context context) {
+        DB db = DB.getInstance(context);
+        if (db.attachment().getOrphans().size() == 0)
+            return;
+
+        try {
+            db.beginTransaction();
+
+            for (String hash : db.attachment().getOrphans()) {
+                if (db.attachment().countAttachments(hash) == 0) {
+                    File file = getFile(context, hash);
+                    if (file.exists() && !file.delete())
+                        Log.w(Helper.TAG, "Error deleting " + file);
+                    Log.i(Helper.TAG, "Purged attachment hash=" + hash);
+                }
+                db.attachment().deleteOrphan(hash);
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof EntityAttachment) {
@@ -0,0 +1,60 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.ForeignKey;
+import androidx.room.Index;
+
+import static androidx.room.ForeignKey.CASCADE;
+
+// Location of a message text or a variant of it in the segment files of the body store
+
+@Entity(
+        tableName = EntityBody.TABLE_NAME,
+        primaryKeys = {"message", "variant"},
+        foreignKeys = {
+                @ForeignKey(childColumns = "message", entity = EntityMessage.class, parentColumns = "id", onDelete = CASCADE)
+        },
+        indices = {
+                @Index(value = {"segment"})
+        }
+)
+public class EntityBody {
+    static final String TABLE_NAME = "body";
+
+    @NonNull
+    public Long message;
+    @NonNull
+    public Integer variant;
+    public String version; // settings the variant was produced with
+    @NonNull
+    public Integer segment;
+    @NonNull
+    public Long position; // bytes
+    @NonNull
+    public Integer length; // stored bytes
+    @NonNull
+    public Integer size; // UTF-8 bytes
+    @NonNull
+    public Boolean compressed;
+}
@@ -63,8 +63,16 @@ public class EntityFolder implements Parcelable {
     public Boolean synchronize;
     @NonNull
     public Integer after; // days
+    @NonNull
+    public Boolean download = true;
+    public Long uid_validity;
+    public Long highest_modseq;
     public String state;
     public String error;
+    @NonNull
+    public Integer messages = 0; // maintained by triggers
+    @NonNull
+    public Integer unseen = 0; // maintained by triggers
 
     static final String INBOX = "Inbox";
     static final String OUTBOX = "Outbox";
@@ -125,6 +133,7 @@ public class EntityFolder implements Parcelable {
                     this.type.equals(other.type) &&
                     this.synchronize.equals(other.synchronize) &&
                     this.after.equals(other.after) &&
+                    this.download.equals(other.download) &&
                     (this.state == null ? other.state == null : this.state.equals(other.state)) &&
                     (this.error == null ? other.error == null : this.error.equals(other.error)));
         } else
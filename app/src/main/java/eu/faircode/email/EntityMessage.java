@@ -20,13 +20,8 @@ package eu.faircode.email;
 */
 
 import android.content.Context;
-import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Date;
@@ -90,6 +85,7 @@ public class EntityMessage implements Serializable {
     public String headers;
     public String subject;
     public Long sent; // compose = null
+    public Integer size;
     @NonNull
     public Long received; // compose = stored
     @NonNull
@@ -102,6 +98,8 @@ public class EntityMessage implements Serializable {
     public Boolean ui_hide;
     @NonNull
     public Boolean ui_found;
+    @NonNull
+    public Boolean content = false;
     public String error;
 
     @Ignore
@@ -117,27 +115,16 @@ public class EntityMessage implements Serializable {
         return sb.toString();
     }
 
-    static File getFile(Context context, Long id) {
-        File dir = new File(context.getFilesDir(), "messages");
+    static File getSpoolFile(Context context, Long id) {
+        File dir = new File(context.getFilesDir(), "spool");
         dir.mkdir();
         return new File(dir, id.toString());
     }
 
     void write(Context context, String body) throws IOException {
-        File file = getFile(context, id);
-        BufferedWriter out = null;
-        try {
-            this.body = (body == null ? "" : body);
-            out = new BufferedWriter(new FileWriter(file));
-            out.write(this.body);
-        } finally {
-            if (out != null)
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    Log.e(Helper.TAG, e + "\n" + Log.getStackTraceString(e));
-                }
-        }
+        this.body = (body == null ? "" : body);
+        BodyStore.write(context, id, this.body);
+        SearchIndex.index(context, this, this.body);
     }
 
     String read(Context context) throws IOException {
@@ -147,26 +134,18 @@ public class EntityMessage implements Serializable {
     }
 
     static String read(Context context, Long id) throws IOException {
-        File file = getFile(context, id);
-        BufferedReader in = null;
-        try {
-            in = new BufferedReader(new FileReader(file));
-            StringBuilder body = new StringBuilder();
-            String line;
-            while ((line = in.readLine()) != null) {
-                body.append(line);
-                body.append('\n');
-            }
-            return body.toString();
-        } finally {
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (IOException ex) {
-                    Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
-                }
-            }
+        return BodyStore.read(context, id);
+    }
+
+    // Sanitized text for display, which is kept until the text or the sanitizer settings change
+    String readDisplay(Context context) throws IOException {
+        String version = HtmlHelper.getVersion(context);
+        String html = BodyStore.read(context, id, BodyStore.DISPLAY, version);
+        if (html == null) {
+            html = HtmlHelper.sanitize(context, read(context), false);
+            BodyStore.write(context, id, BodyStore.DISPLAY, version, html);
         }
+        return html;
     }
 
     @Override
@@ -193,6 +172,7 @@ public class EntityMessage implements Serializable {
                     this.seen.equals(other.seen) &&
                     this.ui_seen.equals(other.ui_seen) &&
                     this.ui_hide.equals(other.ui_hide) &&
+                    this.content.equals(other.content) &&
                     (this.error == null ? other.error == null : this.error.equals(other.error)));
         }
         return false;
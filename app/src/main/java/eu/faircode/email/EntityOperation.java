@@ -20,17 +20,15 @@ package eu.faircode.email;
 */
 
 import android.content.Context;
-import android.content.Intent;
 import android.util.Log;
 
 import org.json.JSONArray;
 
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import androidx.annotation.NonNull;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import androidx.room.Entity;
 import androidx.room.ForeignKey;
 import androidx.room.Index;
@@ -61,7 +59,15 @@ public class EntityOperation {
     @NonNull
     public String name;
     @NonNull
-    public String args;
+    public String args; // for display
+    public Boolean seen;
+    public Long target;
+    public Integer sequence;
+    @NonNull
+    public Integer priority = PRIORITY_NORMAL;
+    @NonNull
+    public Integer attempts = 0;
+    public Long retry;
     @NonNull
     public Long created;
 
@@ -72,58 +78,86 @@ public class EntityOperation {
     public static final String SEND = "send";
     public static final String ATTACHMENT = "attachment";
     public static final String HEADERS = "headers";
+    public static final String BODY = "body";
 
-    private static List<Intent> queue = new ArrayList<>();
+    // Lower values are processed first
+    static final int PRIORITY_HIGH = 0; // send, seen
+    static final int PRIORITY_NORMAL = 1; // other user actions
+    static final int PRIORITY_LOW = 2; // prefetching
+
+    private static Map<Long, Long> queue = new LinkedHashMap<>(); // folder, account
 
     static void queue(DB db, EntityMessage message, String name) {
         JSONArray jsonArray = new JSONArray();
-        queue(db, message, name, jsonArray);
+        queue(db, message, name, jsonArray, getPriority(name));
     }
 
     static void queue(DB db, EntityMessage message, String name, Object value) {
         JSONArray jsonArray = new JSONArray();
         jsonArray.put(value);
-        queue(db, message, name, jsonArray);
+        queue(db, message, name, jsonArray, getPriority(name));
     }
 
     static void queue(DB db, EntityMessage message, String name, Object value1, Object value2) {
         JSONArray jsonArray = new JSONArray();
         jsonArray.put(value1);
         jsonArray.put(value2);
-        queue(db, message, name, jsonArray);
+        queue(db, message, name, jsonArray, getPriority(name));
     }
 
-    private static void queue(DB db, EntityMessage message, String name, JSONArray jsonArray) {
+    static void prefetch(DB db, EntityMessage message, String name) {
+        JSONArray jsonArray = new JSONArray();
+        queue(db, message, name, jsonArray, PRIORITY_LOW);
+    }
+
+    static void prefetch(DB db, EntityMessage message, String name, Object value) {
+        JSONArray jsonArray = new JSONArray();
+        jsonArray.put(value);
+        queue(db, message, name, jsonArray, PRIORITY_LOW);
+    }
+
+    static int getPriority(String name) {
+        if (SEND.equals(name) || SEEN.equals(name))
+            return PRIORITY_HIGH;
+        else
+            return PRIORITY_NORMAL;
+    }
+
+    private static void queue(DB db, EntityMessage message, String name, JSONArray jsonArray, int priority) {
         EntityOperation operation = new EntityOperation();
         operation.folder = message.folder;
         operation.message = message.id;
         operation.name = name;
         operation.args = jsonArray.toString();
+        if (SEEN.equals(name))
+            operation.seen = jsonArray.optBoolean(0);
+        else if (MOVE.equals(name))
+            operation.target = jsonArray.optLong(0);
+        else if (ATTACHMENT.equals(name))
+            operation.sequence = jsonArray.optInt(0);
+        operation.priority = priority;
+        operation.attempts = 0;
         operation.created = new Date().getTime();
         operation.id = db.operation().insertOperation(operation);
 
-        Intent intent = new Intent();
-        intent.setType("account/" + (SEND.equals(name) ? "outbox" : message.account));
-        intent.setAction(ServiceSynchronize.ACTION_PROCESS_OPERATIONS);
-        intent.putExtra("folder", message.folder);
-
         synchronized (queue) {
-            queue.add(intent);
+            queue.put(message.folder, SEND.equals(name) ? null : message.account);
         }
 
         Log.i(Helper.TAG, "Queued op=" + operation.id + "/" + operation.name +
                 " msg=" + message.folder + "/" + operation.message +
-                " args=" + operation.args);
+                " args=" + operation.args + " priority=" + operation.priority);
     }
 
     public static void process(Context context) {
         // Processing needs to be done after committing to the database
-        LocalBroadcastManager lbm = LocalBroadcastManager.getInstance(context);
+        Map<Long, Long> folders;
         synchronized (queue) {
-            for (Intent intent : queue)
-                lbm.sendBroadcast(intent);
+            folders = new LinkedHashMap<>(queue);
             queue.clear();
         }
+        for (Map.Entry<Long, Long> entry : folders.entrySet())
+            OperationDispatcher.dispatch(entry.getValue(), entry.getKey());
     }
 
     @Override
@@ -0,0 +1,43 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+// Stored attachment content which is not referenced anymore
+// Rows are added by the attachment triggers and removed when the content has been deleted
+
+@Entity(
+        tableName = EntityOrphan.TABLE_NAME,
+        foreignKeys = {
+        },
+        indices = {
+        }
+)
+public class EntityOrphan {
+    static final String TABLE_NAME = "orphan";
+
+    @PrimaryKey
+    @NonNull
+    public String hash;
+}
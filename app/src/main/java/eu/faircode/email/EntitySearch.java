@@ -0,0 +1,59 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.ForeignKey;
+import androidx.room.Index;
+
+import static androidx.room.ForeignKey.CASCADE;
+
+// Result of a search in a folder, which is kept for a while to be shown again when the same search is repeated
+// Results are kept apart from the messages, so searching doesn't affect anything observing the messages
+
+@Entity(
+        tableName = EntitySearch.TABLE_NAME,
+        primaryKeys = {"folder", "query", "message"},
+        foreignKeys = {
+                @ForeignKey(childColumns = "folder", entity = EntityFolder.class, parentColumns = "id", onDelete = CASCADE),
+                @ForeignKey(childColumns = "message", entity = EntityMessage.class, parentColumns = "id", onDelete = CASCADE)
+        },
+        indices = {
+                @Index(value = {"message"}),
+                @Index(value = {"time"})
+        }
+)
+public class EntitySearch {
+    static final String TABLE_NAME = "search";
+
+    static final long TTL = 3600 * 1000L; // milliseconds
+
+    @NonNull
+    public Long folder;
+    @NonNull
+    public String query;
+    @NonNull
+    public Long message;
+    @NonNull
+    public Long time; // found
+}
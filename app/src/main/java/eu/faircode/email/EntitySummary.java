@@ -0,0 +1,64 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+
+// Summary of a conversation per folder, which is what the message lists show
+// Rows are maintained by triggers on the message, attachment and folder tables,
+// so the lists can be read in order from an index instead of grouping all messages
+// There are no foreign keys, because rows are rebuilt while messages are deleted by cascading deletes
+
+@Entity(
+        tableName = EntitySummary.TABLE_NAME,
+        primaryKeys = {"folder", "thread"},
+        indices = {
+                @Index(value = {"thread"}),
+                @Index(value = {"message"}),
+                @Index(value = {"folder", "received", "sent"}),
+                @Index(value = {"unified", "received", "sent"})
+        }
+)
+public class EntitySummary {
+    static final String TABLE_NAME = "summary";
+
+    @NonNull
+    public Long folder;
+    @NonNull
+    public String thread; // message thread, or the message id for messages without thread
+    public Long account;
+    @NonNull
+    public Long message; // latest in folder
+    @NonNull
+    public Boolean unified;
+    @NonNull
+    public Integer count; // in all folders
+    @NonNull
+    public Integer unseen; // in all folders
+    @NonNull
+    public Integer attachments; // of latest message
+    @NonNull
+    public Long received; // of latest message
+    public Long sent; // of latest message
+}
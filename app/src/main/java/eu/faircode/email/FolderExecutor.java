@@ -0,0 +1,125 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+// Runs the work of the folders of an account on a bounded number of threads
+// The tasks of a folder run one at a time, in order, without waiting for the work of other folders
+// Folders without a connection of their own share one connection, so only one of them runs at a time
+// Waiting folders take turns in the order in which they got work
+
+public class FolderExecutor {
+    private final ExecutorService executor;
+    private final Map<Long, Queue<Runnable>> queues = new LinkedHashMap<>(); // per folder, waiting first
+    private final Map<Long, Boolean> shared = new LinkedHashMap<>(); // per folder with queued work
+    private final Set<Long> running = new HashSet<>();
+    private boolean sharing = false; // shared connection in use
+    private boolean stopped = false;
+
+    FolderExecutor(int threads, ThreadFactory factory) {
+        this.executor = Executors.newFixedThreadPool(threads, factory);
+    }
+
+    void submit(long folder, boolean connected, Runnable task) {
+        synchronized (this) {
+            if (stopped)
+                throw new RejectedExecutionException("Stopped folder=" + folder);
+
+            Queue<Runnable> queue = queues.get(folder);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(folder, queue);
+            }
+            queue.add(task);
+            shared.put(folder, !connected);
+
+            schedule();
+        }
+    }
+
+    // Interrupts running tasks, which should stop without reporting an error
+    void shutdownNow() {
+        synchronized (this) {
+            stopped = true;
+            queues.clear();
+            shared.clear();
+        }
+        executor.shutdownNow();
+    }
+
+    // Called with the lock held
+    private void schedule() {
+        Iterator<Map.Entry<Long, Queue<Runnable>>> it = queues.entrySet().iterator();
+        Map<Long, Queue<Runnable>> started = new LinkedHashMap<>();
+        while (it.hasNext()) {
+            Map.Entry<Long, Queue<Runnable>> entry = it.next();
+            final long folder = entry.getKey();
+            if (running.contains(folder))
+                continue;
+
+            final boolean share = shared.get(folder);
+            if (share && sharing)
+                continue;
+
+            final Runnable task = entry.getValue().poll();
+            running.add(folder);
+            if (share)
+                sharing = true;
+
+            // Folders with more work go to the end of the line
+            it.remove();
+            if (entry.getValue().size() > 0)
+                started.put(folder, entry.getValue());
+            else
+                shared.remove(folder);
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        synchronized (FolderExecutor.this) {
+                            running.remove(folder);
+                            if (share)
+                                sharing = false;
+                            if (!stopped)
+                                schedule();
+                        }
+                    }
+                }
+            });
+        }
+        queues.putAll(started);
+    }
+}
@@ -129,6 +129,7 @@ public class FragmentAbout extends FragmentEx {
                             draft.ui_seen = false;
                             draft.ui_hide = false;
                             draft.ui_found = false;
+                            draft.content = true;
                             draft.id = db.message().insertMessage(draft);
                             draft.write(context, body);
 
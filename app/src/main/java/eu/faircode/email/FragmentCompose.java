@@ -607,7 +607,7 @@ public class FragmentCompose extends FragmentEx {
         }
 
         try {
-            File file = EntityAttachment.getFile(context, attachment.id);
+            File file = EntityAttachment.getTempFile(context, attachment.id);
 
             InputStream is = null;
             OutputStream os = null;
@@ -621,15 +621,11 @@ public class FragmentCompose extends FragmentEx {
                     size += len;
                     os.write(buffer, 0, len);
 
-                    // Update progress
-                    if (attachment.size != null)
-                        db.attachment().setProgress(attachment.id, size * 100 / attachment.size);
+                    AttachmentProgress.set(attachment.id, size, attachment.size);
                 }
 
                 attachment.size = size;
                 attachment.progress = null;
-                attachment.available = true;
-                db.attachment().updateAttachment(attachment);
             } finally {
                 try {
                     if (is != null)
@@ -639,11 +635,15 @@ public class FragmentCompose extends FragmentEx {
                         os.close();
                 }
             }
+
+            attachment.store(context, db, file);
         } catch (IOException ex) {
             // Reset progress on failure
             attachment.progress = null;
             db.attachment().updateAttachment(attachment);
             throw ex;
+        } finally {
+            AttachmentProgress.clear(attachment.id);
         }
     }
 
@@ -780,6 +780,7 @@ public class FragmentCompose extends FragmentEx {
                 draft.ui_seen = false;
                 draft.ui_hide = false;
                 draft.ui_found = false;
+                draft.content = true;
 
                 draft.id = db.message().insertMessage(draft);
                 draft.write(context, body == null ? "" : body);
@@ -1031,7 +1032,7 @@ public class FragmentCompose extends FragmentEx {
                                 BodyPart bpAttachment = new MimeBodyPart();
                                 bpAttachment.setFileName(attachment.name);
 
-                                File file = EntityAttachment.getFile(context, attachment.id);
+                                File file = attachment.getFile(context);
                                 FileDataSource dataSource = new FileDataSource(file);
                                 dataSource.setFileTypeMap(new FileTypeMap() {
                                     @Override
@@ -1075,7 +1076,7 @@ public class FragmentCompose extends FragmentEx {
                                 attachment.progress = 0;
                                 attachment.id = db.attachment().insertAttachment(attachment);
 
-                                File file = attachment.getFile(context, attachment.id);
+                                File file = EntityAttachment.getTempFile(context, attachment.id);
                                 BufferedOutputStream out = null;
                                 try {
                                     out = new BufferedOutputStream(new FileOutputStream(file));
@@ -1090,8 +1091,7 @@ public class FragmentCompose extends FragmentEx {
                                 }
 
                                 attachment.progress = null;
-                                attachment.available = true;
-                                db.attachment().updateAttachment(attachment);
+                                attachment.store(context, db, file);
 
                                 break;
                             }
@@ -1130,16 +1130,23 @@ public class FragmentCompose extends FragmentEx {
                     draft.msgid = msgid;
                     draft.ui_hide = false;
                     draft.ui_found = false;
+                    draft.content = true;
                     draft.id = db.message().insertMessage(draft);
                     draft.write(getContext(), action == R.id.action_encrypt ? "" : pbody);
 
                     // Restore attachments
                     for (EntityAttachment attachment : attachments) {
-                        File file = EntityAttachment.getFile(context, attachment.id);
+                        File file = attachment.getFile(context);
                         attachment.id = null;
                         attachment.message = draft.id;
                         attachment.id = db.attachment().insertAttachment(attachment);
-                        Helper.copy(file, EntityAttachment.getFile(context, attachment.id));
+
+                        // Stored content is shared by referencing the same hash
+                        if (attachment.hash == null) {
+                            File copy = EntityAttachment.getTempFile(context, attachment.id);
+                            Helper.copy(file, copy);
+                            attachment.store(context, db, copy);
+                        }
                     }
 
                     EntityOperation.queue(db, draft, EntityOperation.SEND);
@@ -39,6 +39,7 @@ public class FragmentFolder extends FragmentEx {
     private ViewGroup view;
     private CheckBox cbSynchronize;
     private CheckBox cbUnified;
+    private CheckBox cbDownload;
     private EditText etAfter;
     private Button btnSave;
     private ProgressBar pbSave;
@@ -65,6 +66,7 @@ public class FragmentFolder extends FragmentEx {
         // Get controls
         cbSynchronize = view.findViewById(R.id.cbSynchronize);
         cbUnified = view.findViewById(R.id.cbUnified);
+        cbDownload = view.findViewById(R.id.cbDownload);
         etAfter = view.findViewById(R.id.etAfter);
         pbSave = view.findViewById(R.id.pbSave);
         btnSave = view.findViewById(R.id.btnSave);
@@ -81,6 +83,7 @@ public class FragmentFolder extends FragmentEx {
                 args.putLong("id", id);
                 args.putBoolean("synchronize", cbSynchronize.isChecked());
                 args.putBoolean("unified", cbUnified.isChecked());
+                args.putBoolean("download", cbDownload.isChecked());
                 args.putString("after", etAfter.getText().toString());
 
                 new SimpleTask<Void>() {
@@ -89,6 +92,7 @@ public class FragmentFolder extends FragmentEx {
                         long id = args.getLong("id");
                         boolean synchronize = args.getBoolean("synchronize");
                         boolean unified = args.getBoolean("unified");
+                        boolean download = args.getBoolean("download");
                         String after = args.getString("after");
                         int days = (TextUtils.isEmpty(after) ? 7 : Integer.parseInt(after));
 
@@ -96,7 +100,7 @@ public class FragmentFolder extends FragmentEx {
                         try {
                             db.beginTransaction();
 
-                            db.folder().setFolderProperties(id, synchronize, unified, days);
+                            db.folder().setFolderProperties(id, synchronize, unified, days, download);
                             if (!synchronize)
                                 db.folder().setFolderError(id, null);
 
@@ -162,6 +166,7 @@ public class FragmentFolder extends FragmentEx {
 
                     cbSynchronize.setChecked(folder.synchronize);
                     cbUnified.setChecked(folder.unified);
+                    cbDownload.setChecked(folder.download);
                     etAfter.setText(Integer.toString(folder.after));
                 }
 
@@ -27,12 +27,12 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Typeface;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.text.Editable;
 import android.text.Html;
@@ -63,6 +63,7 @@ import com.google.android.material.snackbar.Snackbar;
 
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
 import org.openintents.openpgp.OpenPgpError;
 import org.openintents.openpgp.util.OpenPgpApi;
 import org.openintents.openpgp.util.OpenPgpServiceConnection;
@@ -74,10 +75,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.URL;
 import java.text.Collator;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -85,10 +84,14 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.InternetHeaders;
@@ -152,7 +155,6 @@ public class FragmentMessage extends FragmentEx {
 
     private ExecutorService executor = Executors.newCachedThreadPool(Helper.backgroundThreadFactory);
 
-    private static final long CACHE_IMAGE_DURATION = 3 * 24 * 3600 * 1000L;
     static final String ACTION_DECRYPT_MESSAGE = BuildConfig.APPLICATION_ID + ".DECRYPT_MESSAGE";
 
     @Override
@@ -442,6 +444,7 @@ public class FragmentMessage extends FragmentEx {
                 public void onClick(View v) {
                     v.setEnabled(false);
                     args.putBoolean("show_images", true);
+                    args.putInt("width", tvBody.getWidth());
                     bodyTask.load(FragmentMessage.this, args);
                 }
             });
@@ -473,10 +476,19 @@ public class FragmentMessage extends FragmentEx {
                     return;
                 }
 
-                // Messages are immutable except for flags
+                // Messages are immutable except for flags and downloaded content
+                boolean downloaded = (!FragmentMessage.this.message.content && message.content);
                 FragmentMessage.this.message = message;
                 setSeen();
 
+                // Message text can be downloaded
+                if (downloaded && tvBody.getTag() == null) {
+                    Bundle args = new Bundle();
+                    args.putLong("id", message.id);
+                    args.putBoolean("show_images", false);
+                    bodyTask.load(FragmentMessage.this, args);
+                }
+
                 // Headers can be downloaded
                 tvRawHeaders.setText(message.headers);
                 pbRawHeaders.setVisibility(!free && headers && message.headers == null ? View.VISIBLE : View.GONE);
@@ -1095,13 +1107,39 @@ public class FragmentMessage extends FragmentEx {
         protected Spanned onLoad(final Context context, final Bundle args) throws Throwable {
             final long id = args.getLong("id");
             final boolean show_images = args.getBoolean("show_images");
-            String body = message.read(context);
-            args.putInt("size", body.length());
-            return decodeHtml(context, id, body, show_images);
+
+            // Message text might not have been downloaded yet
+            DB db = DB.getInstance(context);
+            EntityMessage message = db.message().getMessage(id);
+            if (message == null)
+                return null;
+            if (!message.content) {
+                // A queued download, like a prefetch, is made urgent instead of queued again
+                try {
+                    db.beginTransaction();
+                    if (db.operation().setOperationPriority(message.id, EntityOperation.BODY,
+                            EntityOperation.getPriority(EntityOperation.BODY)) == 0)
+                        EntityOperation.queue(db, message, EntityOperation.BODY);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                EntityOperation.process(context);
+                return null;
+            }
+
+            // The sanitized text is cached
+            Spanned body = decodeHtml(context, message.readDisplay(context), show_images, args.getInt("width"));
+            if (show_images)
+                Log.i(Helper.TAG, ImageCache.getStatistics());
+            return body;
         }
 
         @Override
         protected void onLoaded(Bundle args, Spanned body) {
+            if (body == null)
+                return; // Waiting for download
+
             boolean show_images = args.getBoolean("show_images");
 
             SpannedString ss = new SpannedString(body);
@@ -1116,56 +1154,33 @@ public class FragmentMessage extends FragmentEx {
         }
     };
 
-    private static Spanned decodeHtml(final Context context, final long id, String body, final boolean show_images) {
-        Spanned result = Html.fromHtml(HtmlHelper.sanitize(context, body, false), new Html.ImageGetter() {
+    private static Spanned decodeHtml(final Context context, String html, final boolean show_images, int width) {
+        // Fetch all images concurrently before the text is laid out
+        // Images not available in time are shown as missing
+        final long deadline = SystemClock.elapsedRealtime() + ImageCache.FETCH_TIMEOUT;
+        final Map<String, Future<Bitmap>> images = new HashMap<>();
+        if (show_images)
+            for (Element img : Jsoup.parse(html).select("img[src]")) {
+                String source = img.attr("src");
+                if (!images.containsKey(source))
+                    images.put(source, ImageCache.fetch(context, source, width));
+            }
+
+        Spanned result = Html.fromHtml(html, new Html.ImageGetter() {
             @Override
             public Drawable getDrawable(String source) {
                 float scale = context.getResources().getDisplayMetrics().density;
                 int px = (int) (24 * scale + 0.5f);
 
                 if (show_images) {
-                    // Get cache folder
-                    File dir = new File(context.getCacheDir(), "images");
-                    dir.mkdir();
-
-                    // Cleanup cache
-                    long now = new Date().getTime();
-                    File[] images = dir.listFiles();
-                    if (images != null)
-                        for (File image : images)
-                            if (image.isFile() && image.lastModified() + CACHE_IMAGE_DURATION < now) {
-                                Log.i(Helper.TAG, "Deleting from image cache " + image.getName());
-                                image.delete();
-                            }
-
-                    InputStream is = null;
-                    FileOutputStream os = null;
                     try {
                         if (source == null)
                             throw new IllegalArgumentException("Html.ImageGetter.getDrawable(source == null)");
 
-                        // Create unique file name
-                        File file = new File(dir, id + "_" + source.hashCode());
-
-                        // Get input stream
-                        if (file.exists()) {
-                            Log.i(Helper.TAG, "Using cached " + file);
-                            is = new FileInputStream(file);
-                        } else {
-                            Log.i(Helper.TAG, "Downloading " + source);
-                            is = new URL(source).openStream();
-                        }
-
-                        // Decode image from stream
-                        Bitmap bm = BitmapFactory.decodeStream(is);
-                        if (bm == null)
-                            throw new IllegalArgumentException();
-
-                        // Cache bitmap
-                        if (!file.exists()) {
-                            os = new FileOutputStream(file);
-                            bm.compress(Bitmap.CompressFormat.PNG, 100, os);
-                        }
+                        Future<Bitmap> future = images.get(source);
+                        if (future == null)
+                            future = ImageCache.fetch(context, source, 0);
+                        Bitmap bm = future.get(Math.max(0, deadline - SystemClock.elapsedRealtime()), TimeUnit.MILLISECONDS);
 
                         // Create drawable from bitmap
                         Drawable d = new BitmapDrawable(context.getResources(), bm);
@@ -1177,22 +1192,6 @@ public class FragmentMessage extends FragmentEx {
                         Drawable d = context.getResources().getDrawable(R.drawable.baseline_warning_24, context.getTheme());
                         d.setBounds(0, 0, px, px);
                         return d;
-                    } finally {
-                        // Close streams
-                        if (is != null) {
-                            try {
-                                is.close();
-                            } catch (IOException e) {
-                                Log.w(Helper.TAG, e + "\n" + Log.getStackTraceString(e));
-                            }
-                        }
-                        if (os != null) {
-                            try {
-                                os.close();
-                            } catch (IOException e) {
-                                Log.w(Helper.TAG, e + "\n" + Log.getStackTraceString(e));
-                            }
-                        }
                     }
                 } else {
                     // Show placeholder icon
@@ -1272,7 +1271,7 @@ public class FragmentMessage extends FragmentEx {
                                                 attachment.sequence = ++sequence;
                                                 attachment.id = db.attachment().insertAttachment(attachment);
 
-                                                File file = EntityAttachment.getFile(getContext(), attachment.id);
+                                                File file = EntityAttachment.getTempFile(getContext(), attachment.id);
 
                                                 // Store attachment
                                                 InputStream is = null;
@@ -1288,11 +1287,8 @@ public class FragmentMessage extends FragmentEx {
                                                         os.write(buffer, 0, len);
                                                     }
 
-                                                    // Store attachment data
                                                     attachment.size = size;
                                                     attachment.progress = null;
-                                                    attachment.available = true;
-                                                    db.attachment().updateAttachment(attachment);
                                                 } finally {
                                                     try {
                                                         if (is != null)
@@ -1302,6 +1298,9 @@ public class FragmentMessage extends FragmentEx {
                                                             os.close();
                                                     }
                                                 }
+
+                                                // Store attachment data
+                                                attachment.store(getContext(), db, file);
                                             }
 
                                             db.setTransactionSuccessful();
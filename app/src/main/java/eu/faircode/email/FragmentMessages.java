@@ -318,7 +318,7 @@ public class FragmentMessages extends FragmentEx {
                         }
                     });
 
-                    messages = new LivePagedListBuilder<>(db.message().pagedUnifiedInbox(debug), MESSAGES_PAGE_SIZE).build();
+                    messages = new LivePagedListBuilder<>(debug ? db.message().pagedUnifiedInboxDebug() : db.message().pagedUnifiedInbox(), MESSAGES_PAGE_SIZE).build();
                 } else {
                     db.folder().liveFolderEx(folder).observe(getViewLifecycleOwner(), new Observer<TupleFolderEx>() {
                         @Override
@@ -335,7 +335,7 @@ public class FragmentMessages extends FragmentEx {
                         }
                     });
 
-                    messages = new LivePagedListBuilder<>(db.message().pagedFolder(folder, false, debug), MESSAGES_PAGE_SIZE).build();
+                    messages = new LivePagedListBuilder<>(debug ? db.message().pagedFolderDebug(folder) : db.message().pagedFolder(folder), MESSAGES_PAGE_SIZE).build();
                 }
             else {
                 setSubtitle(R.string.title_folder_thread);
@@ -372,7 +372,7 @@ public class FragmentMessages extends FragmentEx {
             if (searchCallback == null)
                 searchCallback = new BoundaryCallbackMessages(
                         getContext(), FragmentMessages.this,
-                        folder, search,
+                        folder, search, SEARCH_PAGE_SIZE,
                         new BoundaryCallbackMessages.IBoundaryCallbackMessages() {
                             @Override
                             public void onLoading() {
@@ -399,7 +399,16 @@ public class FragmentMessages extends FragmentEx {
                 protected Void onLoad(Context context, Bundle args) {
                     if (searchState == SearchState.Reset) {
                         long folder = args.getLong("folder");
-                        DB.getInstance(context).message().resetFound(folder);
+                        String search = args.getString("search");
+
+                        // Results of the same search are shown again, unless they are outdated
+                        DB db = DB.getInstance(context);
+                        Long time = db.search().getSearchTime(folder, search);
+                        if (time != null && time < new Date().getTime() - EntitySearch.TTL) {
+                            int count = db.search().deleteSearch(folder, search);
+                            Log.i(Helper.TAG, "Search expired results=" + count);
+                        }
+
                         searchState = SearchState.Database;
                         Log.i(Helper.TAG, "Search reset done");
                     }
@@ -408,7 +417,7 @@ public class FragmentMessages extends FragmentEx {
 
                 @Override
                 protected void onLoaded(final Bundle args, Void data) {
-                    LivePagedListBuilder<Integer, TupleMessageEx> builder = new LivePagedListBuilder<>(db.message().pagedFolder(folder, true, false), SEARCH_PAGE_SIZE);
+                    LivePagedListBuilder<Integer, TupleMessageEx> builder = new LivePagedListBuilder<>(db.message().pagedSearch(folder, search), SEARCH_PAGE_SIZE);
                     builder.setBoundaryCallback(searchCallback);
                     LiveData<PagedList<TupleMessageEx>> messages = builder.build();
                     messages.observe(getViewLifecycleOwner(), new Observer<PagedList<TupleMessageEx>>() {
@@ -427,21 +436,41 @@ public class FragmentMessages extends FragmentEx {
                             if (searchState == SearchState.Database) {
                                 last = new Date().getTime();
                                 long folder = args.getLong("folder");
-                                String search = args.getString("search").toLowerCase();
+                                String search = args.getString("search");
+                                String query = SearchIndex.getQuery(search);
                                 DB db = DB.getInstance(context);
-                                for (long id : db.message().getMessageIDs(folder)) {
-                                    EntityMessage message = db.message().getMessage(id);
-                                    if (message != null) { // Message could be removed in the meantime
-                                        String from = MessageHelper.getFormattedAddresses(message.from, true);
-                                        if (from.toLowerCase().contains(search) ||
-                                                message.subject.toLowerCase().contains(search) ||
-                                                message.read(context).toLowerCase().contains(search)) {
-                                            Log.i(Helper.TAG, "Search found id=" + id);
-                                            db.message().setMessageFound(message.id, true);
-                                            last = message.received;
+
+                                // Add the hits one page at a time, so the first results are shown right away
+                                // Messages which arrived since the search was done before are added too
+                                int offset = 0;
+                                while (query.length() > 0) {
+                                    List<long[]> found = SearchIndex.search(context, folder, query, SEARCH_PAGE_SIZE, offset);
+                                    long time = new Date().getTime();
+                                    try {
+                                        db.beginTransaction();
+                                        for (long[] hit : found) {
+                                            Log.i(Helper.TAG, "Search found id=" + hit[0]);
+                                            EntitySearch result = new EntitySearch();
+                                            result.folder = folder;
+                                            result.query = search;
+                                            result.message = hit[0];
+                                            result.time = time;
+                                            db.search().insertSearch(result);
+                                            last = hit[1];
                                         }
+                                        db.setTransactionSuccessful();
+                                    } finally {
+                                        db.endTransaction();
                                     }
+                                    if (found.size() < SEARCH_PAGE_SIZE)
+                                        break;
+                                    offset += found.size();
                                 }
+
+                                // Continue the server search after the results found by a previous search
+                                Long oldest = db.search().getSearchOldest(folder, search);
+                                if (oldest != null && oldest < last)
+                                    last = oldest;
                                 searchState = SearchState.Boundary;
                                 Log.i(Helper.TAG, "Search database done");
                             }
@@ -229,7 +229,23 @@ public class Helper {
     }
 
     static String sha256(byte[] data) throws NoSuchAlgorithmException {
-        byte[] bytes = MessageDigest.getInstance("SHA-256").digest(data);
+        return hex(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+
+    static String sha256(File file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[ATTACHMENT_BUFFER_SIZE];
+            for (int len = is.read(buffer); len != -1; len = is.read(buffer))
+                digest.update(buffer, 0, len);
+        } finally {
+            is.close();
+        }
+        return hex(digest.digest());
+    }
+
+    private static String hex(byte[] bytes) {
         StringBuilder sb = new StringBuilder();
         for (byte b : bytes)
             sb.append(String.format("%02x", b));
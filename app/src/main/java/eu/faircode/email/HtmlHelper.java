@@ -22,31 +22,34 @@ package eu.faircode.email;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
-import android.text.Html;
 import android.text.TextUtils;
 
 import org.jsoup.Jsoup;
 import org.jsoup.helper.StringUtil;
+import org.jsoup.nodes.Attribute;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Node;
 import org.jsoup.nodes.TextNode;
-import org.jsoup.safety.Whitelist;
 import org.jsoup.select.NodeTraversor;
 import org.jsoup.select.NodeVisitor;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 public class HtmlHelper implements NodeVisitor {
     private Context context;
     private String newline;
-    private List<String> refs = new ArrayList<>();
+    private Map<String, Integer> refs = new LinkedHashMap<>(); // number
     private StringBuilder sb = new StringBuilder();
 
-    private static Pattern pattern = Pattern.compile("([http|https]+://[\\w\\S(\\.|:|/)]+)");
+    private static final int VERSION = 3; // increase when the output of sanitize changes
 
     private HtmlHelper(Context context, boolean reply) {
         this.context = context;
@@ -57,15 +60,14 @@ public class HtmlHelper implements NodeVisitor {
         String name = node.nodeName();
         if (node instanceof TextNode) {
             String text = ((TextNode) node).text();
-            Matcher matcher = pattern.matcher(text);
-            while (matcher.find()) {
-                String ref = matcher.group();
-                if (!refs.contains(ref))
-                    refs.add(ref);
-                String alt = context.getString(R.string.title_link);
-                text = text.replace(ref, String.format("<a href=\"%s\">%s [%d]</a>", ref, alt, refs.size()));
+            String alt = context.getString(R.string.title_link);
+            int pos = 0;
+            for (int[] url = findUrl(text, 0); url != null; url = findUrl(text, pos)) {
+                escape(sb, text, pos, url[0]);
+                appendRef(text.substring(url[0], url[1]), alt);
+                pos = url[1];
             }
-            sb.append(text);
+            escape(sb, text, pos, text.length());
         } else if (name.equals("li"))
             sb.append(newline).append(" * ");
         else if (name.equals("dt"))
@@ -81,38 +83,61 @@ public class HtmlHelper implements NodeVisitor {
         else if (name.equals("a")) {
             String ref = node.absUrl("href");
             if (!TextUtils.isEmpty(ref)) {
-                if (!refs.contains(ref))
-                    refs.add(ref);
                 String alt = node.attr("alt");
                 if (TextUtils.isEmpty(alt))
                     alt = context.getString(R.string.title_link);
-                alt = Html.escapeHtml(alt);
-                sb.append(" ").append(String.format("<a href=\"%s\">%s [%d]</a>", ref, alt, refs.size()));
+                sb.append(" ");
+                appendRef(ref, alt);
             }
         } else if (name.equals("img")) {
             String ref = node.absUrl("src");
             if (!TextUtils.isEmpty(ref)) {
-                if (!refs.contains(ref))
-                    refs.add(ref);
                 String alt = node.attr("alt");
                 if (TextUtils.isEmpty(alt))
                     alt = context.getString(R.string.title_image);
-                alt = Html.escapeHtml(alt);
-                sb.append(" ").append(String.format("<a href=\"%s\">%s [%d]</a>", ref, alt, refs.size()));
-                sb.append("<img src=\"" + ref + "\" alt=\"" + alt + "\">");
+                sb.append(" ");
+                appendRef(ref, alt);
+                sb.append("<img src=\"");
+                escape(sb, ref, 0, ref.length());
+                sb.append("\" alt=\"");
+                escape(sb, alt, 0, alt.length());
+                sb.append("\">");
             }
         }
     }
 
+    private void appendRef(String ref, String alt) {
+        Integer number = refs.get(ref);
+        if (number == null) {
+            number = refs.size() + 1;
+            refs.put(ref, number);
+        }
+
+        sb.append("<a href=\"");
+        escape(sb, ref, 0, ref.length());
+        sb.append("\">");
+        escape(sb, alt, 0, alt.length());
+        sb.append(" [").append(number).append("]</a>");
+    }
+
     @Override
     public String toString() {
         if (refs.size() > 0)
             sb.append(newline).append(newline);
-        for (int i = 0; i < refs.size(); i++)
-            sb.append(String.format("[%d] %s ", i + 1, refs.get(i))).append(newline);
+        for (Map.Entry<String, Integer> ref : refs.entrySet()) {
+            sb.append("[").append(ref.getValue()).append("] ");
+            escape(sb, ref.getKey(), 0, ref.getKey().length());
+            sb.append(" ").append(newline);
+        }
         return sb.toString();
     }
 
+    // Identifies the code and the settings sanitized texts for display were produced with
+    static String getVersion(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return VERSION + ":" + prefs.getBoolean("sanitize", false) + ":" + Locale.getDefault();
+    }
+
     public static String sanitize(Context context, String html, boolean reply) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
@@ -121,30 +146,205 @@ public class HtmlHelper implements NodeVisitor {
             HtmlHelper visitor = new HtmlHelper(context, reply);
             NodeTraversor.traverse(visitor, document.body());
             return visitor.toString();
-        } else {
-            Document document = Jsoup.parse(Jsoup.clean(html, Whitelist.relaxed()));
-            for (Element tr : document.select("tr"))
-                tr.after("<br>");
-            NodeTraversor.traverse(new NodeVisitor() {
-                @Override
-                public void head(Node node, int depth) {
-                    if (node instanceof TextNode) {
-                        String text = ((TextNode) node).text();
-                        Matcher matcher = pattern.matcher(text);
-                        while (matcher.find()) {
-                            String ref = matcher.group();
-                            text = text.replace(ref, String.format("<a href=\"%s\">%s</a>", ref, ref));
+        } else
+            return clean(html);
+    }
+
+    // Writes the safe part of the html in one pass over the parsed document, without copying or changing it
+    // The same tags and attributes are kept as by the relaxed whitelist of the jsoup cleaner
+    static String clean(String html) {
+        Document document = Jsoup.parse(html);
+        SafeWriter writer = new SafeWriter();
+        NodeTraversor.traverse(writer, document.body());
+        return writer.toString();
+    }
+
+    // Returns the start and end of the next http(s) URL in the text, or null if there is none
+    // Each character is looked at a bounded number of times
+    static int[] findUrl(String text, int from) {
+        int length = text.length();
+        for (int i = from; i < length; i++) {
+            char c = text.charAt(i);
+            if (c != 'h' && c != 'H')
+                continue;
+            if (i > 0 && Character.isLetterOrDigit(text.charAt(i - 1)))
+                continue;
+
+            int scheme;
+            if (text.regionMatches(true, i, "http://", 0, 7))
+                scheme = 7;
+            else if (text.regionMatches(true, i, "https://", 0, 8))
+                scheme = 8;
+            else
+                continue;
+
+            int start = i;
+            int end = start + scheme;
+            int open = 0;
+            int close = 0;
+            while (end < length) {
+                char e = text.charAt(end);
+                if (Character.isWhitespace(e) || e == '<' || e == '>' || e == '"')
+                    break;
+                if (e == '(')
+                    open++;
+                else if (e == ')')
+                    close++;
+                end++;
+            }
+
+            // Trailing punctuation and unbalanced parentheses are most likely not part of the URL
+            while (end > start + scheme) {
+                char e = text.charAt(end - 1);
+                if (".,;:!?'".indexOf(e) >= 0)
+                    end--;
+                else if (e == ')' && close > open) {
+                    end--;
+                    close--;
+                } else
+                    break;
+            }
+
+            if (end > start + scheme)
+                return new int[]{start, end};
+
+            i = start + scheme - 1;
+        }
+        return null;
+    }
+
+    private static class SafeWriter implements NodeVisitor {
+        private StringBuilder sb = new StringBuilder();
+        private int anchors = 0;
+
+        private static final Set<String> TAGS = new HashSet<>(Arrays.asList(
+                "a", "b", "blockquote", "br", "caption", "cite", "code", "col", "colgroup", "dd", "div", "dl", "dt",
+                "em", "h1", "h2", "h3", "h4", "h5", "h6", "i", "img", "li", "ol", "p", "pre", "q", "small", "span",
+                "strike", "strong", "sub", "sup", "table", "tbody", "td", "tfoot", "th", "thead", "tr", "u", "ul"));
+        private static final Set<String> EMPTY = new HashSet<>(Arrays.asList("br", "col", "img"));
+        private static final Map<String, List<String>> ATTRIBUTES = new HashMap<>();
+        private static final Map<String, List<String>> PROTOCOLS = new HashMap<>(); // tag:attribute
+
+        static {
+            ATTRIBUTES.put("a", Arrays.asList("href", "title"));
+            ATTRIBUTES.put("blockquote", Arrays.asList("cite"));
+            ATTRIBUTES.put("col", Arrays.asList("span", "width"));
+            ATTRIBUTES.put("colgroup", Arrays.asList("span", "width"));
+            ATTRIBUTES.put("img", Arrays.asList("align", "alt", "height", "src", "title", "width"));
+            ATTRIBUTES.put("ol", Arrays.asList("start", "type"));
+            ATTRIBUTES.put("q", Arrays.asList("cite"));
+            ATTRIBUTES.put("table", Arrays.asList("summary", "width"));
+            ATTRIBUTES.put("td", Arrays.asList("abbr", "axis", "colspan", "rowspan", "width"));
+            ATTRIBUTES.put("th", Arrays.asList("abbr", "axis", "colspan", "rowspan", "scope", "width"));
+            ATTRIBUTES.put("ul", Arrays.asList("type"));
+
+            PROTOCOLS.put("a:href", Arrays.asList("ftp", "http", "https", "mailto"));
+            PROTOCOLS.put("blockquote:cite", Arrays.asList("http", "https"));
+            PROTOCOLS.put("cite:cite", Arrays.asList("http", "https"));
+            PROTOCOLS.put("img:src", Arrays.asList("http", "https"));
+            PROTOCOLS.put("q:cite", Arrays.asList("http", "https"));
+        }
+
+        @Override
+        public void head(Node node, int depth) {
+            if (depth == 0)
+                return; // the body itself is not written
+
+            if (node instanceof TextNode) {
+                String text = ((TextNode) node).getWholeText();
+                int pos = 0;
+                if (anchors == 0)
+                    for (int[] url = findUrl(text, 0); url != null; url = findUrl(text, pos)) {
+                        escape(sb, text, pos, url[0]);
+                        sb.append("<a href=\"");
+                        escape(sb, text, url[0], url[1]);
+                        sb.append("\">");
+                        escape(sb, text, url[0], url[1]);
+                        sb.append("</a>");
+                        pos = url[1];
+                    }
+                escape(sb, text, pos, text.length());
+            } else if (node instanceof Element) {
+                // The content of unsafe elements is kept, except for script and style data
+                Element element = (Element) node;
+                String tag = element.tagName();
+                if (!TAGS.contains(tag))
+                    return;
+
+                if (tag.equals("a"))
+                    anchors++;
+
+                sb.append('<').append(tag);
+                List<String> names = ATTRIBUTES.get(tag);
+                if (names != null)
+                    for (Attribute attribute : element.attributes()) {
+                        String name = attribute.getKey();
+                        if (!names.contains(name))
+                            continue;
+
+                        String value = attribute.getValue();
+                        List<String> protocols = PROTOCOLS.get(tag + ":" + name);
+                        if (protocols != null) {
+                            // Relative links can't be resolved without a base, so only absolute links are kept
+                            value = value.trim();
+                            if (!hasProtocol(value, protocols))
+                                continue;
                         }
-                        node.before(text);
-                        ((TextNode) node).text("");
+
+                        sb.append(' ').append(name).append("=\"");
+                        escape(sb, value, 0, value.length());
+                        sb.append('"');
                     }
-                }
+                sb.append('>');
+            }
+        }
+
+        @Override
+        public void tail(Node node, int depth) {
+            if (depth == 0 || !(node instanceof Element))
+                return;
+
+            String tag = ((Element) node).tagName();
+            if (!TAGS.contains(tag))
+                return;
+
+            if (tag.equals("a"))
+                anchors--;
+
+            if (!EMPTY.contains(tag))
+                sb.append("</").append(tag).append('>');
+
+            // Rows are shown as separate lines
+            if (tag.equals("tr"))
+                sb.append("<br>");
+        }
+
+        private static boolean hasProtocol(String value, List<String> protocols) {
+            for (String protocol : protocols)
+                if (value.regionMatches(true, 0, protocol + ":", 0, protocol.length() + 1))
+                    return true;
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
 
-                @Override
-                public void tail(Node node, int depth) {
-                }
-            }, document.body());
-            return document.body().html();
+    private static void escape(StringBuilder sb, String text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '<')
+                sb.append("&lt;");
+            else if (c == '>')
+                sb.append("&gt;");
+            else if (c == '&')
+                sb.append("&amp;");
+            else if (c == '"')
+                sb.append("&quot;");
+            else
+                sb.append(c);
         }
     }
 }
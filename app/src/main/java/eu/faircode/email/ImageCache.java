@@ -0,0 +1,252 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+// Cache of images shown in message texts
+// Decoded images are kept in memory, downloaded images are kept on disk as received
+// Images are fetched concurrently with a limited number of connections per host
+
+public class ImageCache {
+    private static final int FETCH_THREADS = 6;
+    private static final int HOST_CONNECTIONS = 2;
+    private static final int CONNECT_TIMEOUT = 20 * 1000; // milliseconds
+    private static final int READ_TIMEOUT = 20 * 1000; // milliseconds
+    static final long FETCH_TIMEOUT = 30 * 1000L; // milliseconds
+    private static final long DISK_CACHE_SIZE = 20 * 1024 * 1024L; // bytes
+    private static final long DISK_CACHE_DURATION = 3 * 24 * 3600 * 1000L; // milliseconds
+
+    private static final Map<String, Future<Bitmap>> pending = new HashMap<>(); // by key
+    private static final Map<String, Semaphore> hosts = new HashMap<>();
+    private static ExecutorService executor = Executors.newFixedThreadPool(FETCH_THREADS, Helper.backgroundThreadFactory);
+
+    private static int memoryHits = 0;
+    private static int diskHits = 0;
+    private static int misses = 0;
+
+    private static final LruCache<String, Bitmap> memory = new LruCache<String, Bitmap>(
+            (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8)) {
+        @Override
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return bitmap.getByteCount();
+        }
+    };
+
+    // Starts fetching the image, decoded to at most the given width when the width is known
+    static Future<Bitmap> fetch(final Context context, final String source, final int width) {
+        final String key = source + "@" + width;
+
+        final Bitmap cached = memory.get(key);
+        if (cached != null) {
+            synchronized (ImageCache.class) {
+                memoryHits++;
+            }
+            FutureTask<Bitmap> done = new FutureTask<>(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() {
+                    return cached;
+                }
+            });
+            done.run();
+            return done;
+        }
+
+        synchronized (pending) {
+            Future<Bitmap> future = pending.get(key);
+            if (future == null) {
+                future = executor.submit(new Callable<Bitmap>() {
+                    @Override
+                    public Bitmap call() throws Exception {
+                        try {
+                            File file = getFile(context, source);
+                            if (file.exists()) {
+                                synchronized (ImageCache.class) {
+                                    diskHits++;
+                                }
+                                // Recently used images are evicted last
+                                file.setLastModified(new Date().getTime());
+                            } else {
+                                synchronized (ImageCache.class) {
+                                    misses++;
+                                }
+                                download(source, file);
+                            }
+
+                            Bitmap bm = decode(file, width);
+                            if (bm == null)
+                                throw new IllegalArgumentException("Undecodable image " + source);
+                            memory.put(key, bm);
+                            return bm;
+                        } finally {
+                            synchronized (pending) {
+                                pending.remove(key);
+                            }
+                        }
+                    }
+                });
+                pending.put(key, future);
+            }
+            return future;
+        }
+    }
+
+    private static void download(String source, File file) throws IOException, InterruptedException {
+        URL url = new URL(source);
+
+        Semaphore host;
+        synchronized (hosts) {
+            host = hosts.get(url.getHost());
+            if (host == null) {
+                host = new Semaphore(HOST_CONNECTIONS);
+                hosts.put(url.getHost(), host);
+            }
+        }
+
+        host.acquire();
+        try {
+            Log.i(Helper.TAG, "Downloading " + source);
+
+            // Write to a temporary file of this download, so partial downloads are never used
+            File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            InputStream is = null;
+            OutputStream os = null;
+            try {
+                // Stalled servers should not hold up a fetch thread forever
+                URLConnection connection = url.openConnection();
+                connection.setConnectTimeout(CONNECT_TIMEOUT);
+                connection.setReadTimeout(READ_TIMEOUT);
+                is = connection.getInputStream();
+                os = new FileOutputStream(tmp);
+                byte[] buffer = new byte[Helper.ATTACHMENT_BUFFER_SIZE];
+                for (int len = is.read(buffer); len != -1; len = is.read(buffer))
+                    os.write(buffer, 0, len);
+            } catch (IOException ex) {
+                tmp.delete();
+                throw ex;
+            } finally {
+                try {
+                    if (is != null)
+                        is.close();
+                } finally {
+                    if (os != null)
+                        os.close();
+                }
+            }
+
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Error caching " + file);
+            }
+        } finally {
+            host.release();
+        }
+    }
+
+    private static Bitmap decode(File file, int width) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if (width > 0) {
+            // Decode the dimensions only to determine the scale
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+
+            int scale = 1;
+            while (options.outWidth / (scale * 2) >= width)
+                scale *= 2;
+
+            options = new BitmapFactory.Options();
+            options.inSampleSize = scale;
+        }
+        return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+    }
+
+    private static File getFile(Context context, String source) throws NoSuchAlgorithmException {
+        File dir = new File(context.getCacheDir(), "images");
+        dir.mkdir();
+        return new File(dir, Helper.sha256(source));
+    }
+
+    // Runs periodically to remove old images and to limit the size of the disk cache
+    static void evict(Context context) {
+        File[] files = new File(context.getCacheDir(), "images").listFiles();
+        if (files == null)
+            return;
+
+        // Oldest first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+
+        long total = 0;
+        for (File file : files)
+            total += file.length();
+
+        long before = new Date().getTime() - DISK_CACHE_DURATION;
+        int count = 0;
+        for (File file : files)
+            if (file.lastModified() < before || total > DISK_CACHE_SIZE) {
+                long length = file.length();
+                if (file.delete()) {
+                    total -= length;
+                    count++;
+                } else
+                    Log.w(Helper.TAG, "Error deleting " + file);
+            }
+
+        Log.i(Helper.TAG, "Image cache evicted=" + count + " size=" + total + " " + getStatistics());
+    }
+
+    static synchronized String getStatistics() {
+        int total = memoryHits + diskHits + misses;
+        return "Image cache memory hits=" + memoryHits +
+                " disk hits=" + diskHits +
+                " misses=" + misses +
+                " hit rate=" + (total == 0 ? 0 : (memoryHits + diskHits) * 100 / total) + "%" +
+                " memory=" + memory.size() + "/" + memory.maxSize();
+    }
+}
@@ -28,6 +28,7 @@ import android.content.Context;
 import android.util.Log;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Date;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -61,39 +62,107 @@ public class JobDaily extends JobService {
             public void run() {
                 Log.i(Helper.TAG, "Start daily job");
 
-                // Cleanup message files
-                Log.i(Helper.TAG, "Cleanup message files");
-                File[] messages = new File(getFilesDir(), "messages").listFiles();
-                if (messages != null)
-                    for (File file : messages)
+                // Move message files into the body store
+                Log.i(Helper.TAG, "Migrate message files");
+                BodyStore.migrate(JobDaily.this);
+
+                // Reclaim space of deleted message texts
+                Log.i(Helper.TAG, "Compact body store");
+                try {
+                    BodyStore.compact(JobDaily.this);
+                } catch (IOException ex) {
+                    Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+                }
+
+                // Index messages stored before there was a search index
+                Log.i(Helper.TAG, "Index messages");
+                SearchIndex.index(JobDaily.this);
+
+                // Move attachment files into the content store
+                Log.i(Helper.TAG, "Migrate attachment files");
+                File[] attachments = new File(getFilesDir(), "attachments").listFiles();
+                if (attachments != null)
+                    for (File file : attachments)
                         if (file.isFile()) {
                             long id = Long.parseLong(file.getName());
-                            if (db.message().countMessage(id) == 0) {
-                                Log.i(Helper.TAG, "Cleanup message id=" + id);
+                            EntityAttachment attachment = db.attachment().getAttachment(id);
+                            if (attachment == null || attachment.hash != null || !attachment.available) {
+                                // Partially downloaded content will be downloaded again
+                                Log.i(Helper.TAG, "Cleanup attachment id=" + id);
                                 if (!file.delete())
                                     Log.w(Helper.TAG, "Error deleting " + file);
-                            }
+                            } else
+                                try {
+                                    Log.i(Helper.TAG, "Migrate attachment id=" + id);
+                                    attachment.store(JobDaily.this, db, file);
+                                } catch (IOException ex) {
+                                    Log.e(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+                                }
                         }
 
-                // Cleanup attachment files
-                Log.i(Helper.TAG, "Cleanup attachment files");
-                File[] attachments = new File(getFilesDir(), "attachments").listFiles();
-                if (attachments != null)
-                    for (File file : attachments)
+                // Cleanup unreferenced attachment content
+                Log.i(Helper.TAG, "Purge attachment files");
+                EntityAttachment.purge(JobDaily.this);
+
+                // Cleanup interrupted writes
+                Log.i(Helper.TAG, "Cleanup temporary files");
+                long ago = new Date().getTime() - 24 * 3600 * 1000L;
+                File[] temps = new File(getFilesDir(), "temp").listFiles();
+                if (temps != null)
+                    for (File file : temps)
+                        if (file.isFile() && file.lastModified() < ago) {
+                            Log.i(Helper.TAG, "Cleanup temporary " + file.getName());
+                            if (!file.delete())
+                                Log.w(Helper.TAG, "Error deleting " + file);
+                        }
+
+                // Cleanup partial downloads
+                Log.i(Helper.TAG, "Cleanup partial downloads");
+                File[] downloads = new File(getFilesDir(), "downloads").listFiles();
+                if (downloads != null)
+                    for (File file : downloads)
                         if (file.isFile()) {
                             long id = Long.parseLong(file.getName());
                             if (db.attachment().countAttachment(id) == 0) {
-                                Log.i(Helper.TAG, "Cleanup attachment id=" + id);
+                                Log.i(Helper.TAG, "Cleanup download id=" + id);
                                 if (!file.delete())
                                     Log.w(Helper.TAG, "Error deleting " + file);
                             }
                         }
 
+                // Cleanup spooled messages
+                Log.i(Helper.TAG, "Cleanup spool files");
+                File[] spooled = new File(getFilesDir(), "spool").listFiles();
+                if (spooled != null)
+                    for (File file : spooled)
+                        if (file.isFile()) {
+                            long id = Long.parseLong(file.getName());
+                            if (db.message().countMessage(id) == 0) {
+                                Log.i(Helper.TAG, "Cleanup spooled id=" + id);
+                                if (!file.delete())
+                                    Log.w(Helper.TAG, "Error deleting " + file);
+                            }
+                        }
+
+                // Evict images
+                Log.i(Helper.TAG, "Evict image cache");
+                ImageCache.evict(JobDaily.this);
+
                 Log.i(Helper.TAG, "Cleanup log");
                 long before = new Date().getTime() - 24 * 3600 * 1000L;
                 int logs = db.log().deleteLogs(before);
                 Log.i(Helper.TAG, "Deleted logs=" + logs);
 
+                // Repair denormalized data
+                Log.i(Helper.TAG, "Repair folder counters");
+                int folders = db.folder().repairFolderCounts();
+                Log.i(Helper.TAG, "Repaired folders=" + folders);
+
+                // Cleanup search results
+                Log.i(Helper.TAG, "Cleanup search results");
+                int results = db.search().deleteSearches(new Date().getTime() - EntitySearch.TTL);
+                Log.i(Helper.TAG, "Deleted search results=" + results);
+
                 // Cleanup found messages
                 Log.i(Helper.TAG, "Cleanup found messages");
                 int found = db.message().deleteFoundMessages();
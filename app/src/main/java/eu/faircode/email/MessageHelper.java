@@ -27,13 +27,15 @@ import android.util.Base64;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
@@ -55,6 +57,7 @@ import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
 
 public class MessageHelper {
     private MimeMessage imessage;
@@ -152,35 +155,25 @@ public class MessageHelper {
 
         // TODO: plain message?
 
+        // The attachments are streamed from their files when the message is written
+        DataHandler body = new DataHandler(new ByteArrayDataSource(
+                message.read(context), "text/html; charset=UTF-8"));
+
         if (attachments.size() == 0)
-            imessage.setText(message.read(context), Charset.defaultCharset().name(), "html");
+            imessage.setDataHandler(body);
         else {
             Multipart multipart = new MimeMultipart();
 
             BodyPart bpMessage = new MimeBodyPart();
-            bpMessage.setContent(message.read(context), "text/html; charset=" + Charset.defaultCharset().name());
+            bpMessage.setDataHandler(body);
             multipart.addBodyPart(bpMessage);
 
-            for (final EntityAttachment attachment : attachments)
+            for (EntityAttachment attachment : attachments)
                 if (attachment.available) {
                     BodyPart bpAttachment = new MimeBodyPart();
                     bpAttachment.setFileName(attachment.name);
-
-                    File file = EntityAttachment.getFile(context, attachment.id);
-                    FileDataSource dataSource = new FileDataSource(file);
-                    dataSource.setFileTypeMap(new FileTypeMap() {
-                        @Override
-                        public String getContentType(File file) {
-                            return attachment.type;
-                        }
-
-                        @Override
-                        public String getContentType(String filename) {
-                            return attachment.type;
-                        }
-                    });
-                    bpAttachment.setDataHandler(new DataHandler(dataSource));
-
+                    bpAttachment.setDataHandler(getDataHandler(
+                            attachment.getFile(context), attachment.type));
                     multipart.addBodyPart(bpAttachment);
                 }
 
@@ -192,6 +185,33 @@ public class MessageHelper {
         return imessage;
     }
 
+    private static DataHandler getDataHandler(File file, final String type) {
+        FileDataSource dataSource = new FileDataSource(file);
+        dataSource.setFileTypeMap(new FileTypeMap() {
+            @Override
+            public String getContentType(File file) {
+                return type;
+            }
+
+            @Override
+            public String getContentType(String filename) {
+                return type;
+            }
+        });
+        return new DataHandler(dataSource);
+    }
+
+    static void spool(MimeMessage imessage, File file) throws MessagingException, IOException {
+        // Encode the message once, so the same bytes can be sent and appended to the sent folder
+        imessage.saveChanges();
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            imessage.writeTo(os);
+        } finally {
+            os.close();
+        }
+    }
+
     static MimeMessageEx from(Context context, EntityMessage message, EntityMessage reply, List<EntityAttachment> attachments, Session isession) throws MessagingException, IOException {
         MimeMessageEx imessage = from(context, message, attachments, isession);
         imessage.addHeader("In-Reply-To", reply.msgid);
@@ -352,14 +372,11 @@ public class MessageHelper {
     public List<EntityAttachment> getAttachments() throws IOException, MessagingException {
         List<EntityAttachment> result = new ArrayList<>();
 
-        Object content = imessage.getContent();
-        if (content instanceof String)
-            return result;
-
-        if (content instanceof Multipart) {
-            Multipart multipart = (Multipart) content;
+        // Checking the type first prevents downloading the content of single part messages
+        if (imessage.isMimeType("multipart/*")) {
+            Multipart multipart = (Multipart) imessage.getContent();
             for (int i = 0; i < multipart.getCount(); i++)
-                result.addAll(getAttachments(multipart.getBodyPart(i)));
+                result.addAll(getAttachments(multipart.getBodyPart(i), Integer.toString(i + 1)));
         }
 
         return result;
@@ -367,16 +384,20 @@ public class MessageHelper {
 
     static List<EntityAttachment> getAttachments(BodyPart part) throws
             IOException, MessagingException {
+        // Parts which are not stored on the server have no section
+        return getAttachments(part, null);
+    }
+
+    private static List<EntityAttachment> getAttachments(BodyPart part, String section) throws
+            IOException, MessagingException {
         List<EntityAttachment> result = new ArrayList<>();
 
-        Object content;
-        try {
-            content = part.getContent();
-        } catch (UnsupportedEncodingException ex) {
-            Log.w(Helper.TAG, "attachment content type=" + part.getContentType());
-            content = part.getInputStream();
-        }
-        if (content instanceof InputStream || content instanceof String) {
+        // The content of leaf parts is not needed and might not have been downloaded
+        if (part.isMimeType("multipart/*")) {
+            Multipart multipart = (Multipart) part.getContent();
+            for (int i = 0; i < multipart.getCount(); i++)
+                result.addAll(getAttachments(multipart.getBodyPart(i), section == null ? null : section + "." + (i + 1)));
+        } else if (!part.isMimeType("message/rfc822")) {
             String disposition;
             try {
                 disposition = part.getDisposition();
@@ -397,8 +418,17 @@ public class MessageHelper {
                 attachment.name = filename;
                 attachment.type = ct.getBaseType();
                 attachment.size = part.getSize();
+                attachment.section = section;
                 attachment.part = part;
 
+                // The size is the size of the encoded part, which is what is fetched by section
+                if (part instanceof MimeBodyPart)
+                    try {
+                        attachment.encoding = ((MimeBodyPart) part).getEncoding();
+                    } catch (MessagingException ex) {
+                        Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+                    }
+
                 // Try to guess a better content type
                 // Sometimes PDF files are sent using the wrong type
                 if ("application/octet-stream".equals(attachment.type) && attachment.name != null) {
@@ -417,10 +447,6 @@ public class MessageHelper {
 
                 result.add(attachment);
             }
-        } else if (content instanceof Multipart) {
-            Multipart multipart = (Multipart) content;
-            for (int i = 0; i < multipart.getCount(); i++)
-                result.addAll(getAttachments(multipart.getBodyPart(i)));
         }
 
         return result;
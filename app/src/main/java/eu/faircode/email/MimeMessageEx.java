@@ -21,6 +21,8 @@ package eu.faircode.email;
 
 import android.util.Log;
 
+import java.io.InputStream;
+
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
@@ -33,6 +35,11 @@ public class MimeMessageEx extends MimeMessage {
         this.msgid = msgid;
     }
 
+    public MimeMessageEx(Session session, InputStream is, String msgid) throws MessagingException {
+        super(session, is);
+        this.msgid = msgid;
+    }
+
     @Override
     protected void updateMessageID() throws MessagingException {
         if (msgid == null)
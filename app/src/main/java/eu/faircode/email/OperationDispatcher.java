@@ -0,0 +1,92 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+// Wakes up the worker of a folder directly when operations have been queued
+// Wakeups of a folder are coalesced until the worker starts processing the folder
+// Listeners are called with the lock held, so a worker never gets a wakeup after unregistering
+
+public class OperationDispatcher {
+    private static final Map<Long, Listener> listeners = new HashMap<>(); // per account, null key for outbox
+    private static final Map<Long, Long> pending = new HashMap<>(); // folder, account
+
+    interface Listener {
+        void onOperations(long folder);
+    }
+
+    static void register(Long account, Listener listener) {
+        synchronized (listeners) {
+            listeners.put(account, listener);
+        }
+    }
+
+    static void unregister(Long account) {
+        synchronized (listeners) {
+            listeners.remove(account);
+
+            // Pending wakeups are lost with the worker
+            List<Long> folders = new ArrayList<>();
+            for (Map.Entry<Long, Long> entry : pending.entrySet())
+                if (account == null ? entry.getValue() == null : account.equals(entry.getValue()))
+                    folders.add(entry.getKey());
+            for (Long folder : folders)
+                pending.remove(folder);
+        }
+    }
+
+    static void dispatch(Long account, long folder) {
+        synchronized (listeners) {
+            Listener listener = listeners.get(account);
+            if (listener == null) {
+                Log.i(Helper.TAG, "Dispatch no worker account=" + account + " folder=" + folder);
+                return;
+            }
+            if (pending.containsKey(folder)) {
+                Log.i(Helper.TAG, "Dispatch pending folder=" + folder);
+                return;
+            }
+            pending.put(folder, account);
+
+            try {
+                listener.onOperations(folder);
+            } catch (RejectedExecutionException ex) {
+                // The worker is stopping, the operations will be processed when it is started again
+                Log.w(Helper.TAG, "Dispatch rejected folder=" + folder + " " + ex);
+                pending.remove(folder);
+            }
+        }
+    }
+
+    static void started(long folder) {
+        // Operations queued from now on need a new wakeup
+        synchronized (listeners) {
+            pending.remove(folder);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import org.jsoup.Jsoup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+// Full-text index of the subject, the addresses and the plain text of messages
+// The index is an FTS4 virtual table, which Room doesn't know about, so it is accessed with plain SQL
+// Rows are added when a message is stored or its text is written and removed by a trigger when a message is deleted
+
+public class SearchIndex {
+    static final String TABLE_NAME = "message_fts";
+
+    static void create(SupportSQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE_NAME +
+                " USING fts4(subject, addresses, body, tokenize=unicode61)");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS message_fts_delete" +
+                " AFTER DELETE ON message" +
+                " BEGIN" +
+                "  DELETE FROM " + TABLE_NAME + " WHERE docid = OLD.id;" +
+                " END");
+    }
+
+    static void index(Context context, EntityMessage message, String html) {
+        insert(context, message, getText(html));
+    }
+
+    // Parsing the html is kept out of database transactions
+    static String getText(String html) {
+        return (html == null ? "" : Jsoup.parse(html).text());
+    }
+
+    static void insert(Context context, EntityMessage message, String text) {
+        String addresses = MessageHelper.getFormattedAddresses(message.from, true) + " " +
+                MessageHelper.getFormattedAddresses(message.to, true) + " " +
+                MessageHelper.getFormattedAddresses(message.cc, true);
+
+        DB db = DB.getInstance(context);
+        SupportSQLiteDatabase sdb = db.getOpenHelper().getWritableDatabase();
+        try {
+            sdb.beginTransaction();
+            sdb.execSQL("DELETE FROM " + TABLE_NAME + " WHERE docid = ?", new Object[]{message.id});
+            sdb.execSQL("INSERT INTO " + TABLE_NAME + " (docid, subject, addresses, body) VALUES (?, ?, ?, ?)",
+                    new Object[]{message.id, message.subject == null ? "" : message.subject, addresses, text});
+            sdb.setTransactionSuccessful();
+        } finally {
+            sdb.endTransaction();
+        }
+    }
+
+    // Indexes messages stored before there was an index, in the background
+    // Searches find the messages indexed so far
+    static void index(Context context) {
+        index(context, "SELECT id FROM message" +
+                " WHERE id NOT IN (SELECT docid FROM " + TABLE_NAME + ")", new Object[0]);
+    }
+
+    static void index(Context context, long folder) {
+        index(context, "SELECT id FROM message" +
+                " WHERE folder = ?" +
+                " AND id NOT IN (SELECT docid FROM " + TABLE_NAME + ")", new Object[]{folder});
+    }
+
+    private static void index(Context context, String query, Object[] args) {
+        List<Long> ids = new ArrayList<>();
+
+        DB db = DB.getInstance(context);
+        Cursor cursor = db.query(query, args);
+        try {
+            while (cursor.moveToNext())
+                ids.add(cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+
+        if (ids.size() > 0)
+            Log.i(Helper.TAG, "Indexing messages=" + ids.size());
+
+        for (long id : ids)
+            try {
+                EntityMessage message = db.message().getMessage(id);
+                if (message != null) // Message could be removed in the meantime
+                    index(context, message, message.content ? message.read(context) : null);
+            } catch (IOException ex) {
+                Log.w(Helper.TAG, "Indexing id=" + id + " " + ex + "\n" + Log.getStackTraceString(ex));
+            }
+    }
+
+    // Returns the matching messages of a folder, newest first, as pairs of id and time received
+    static List<long[]> search(Context context, long folder, String query, int limit, int offset) {
+        List<long[]> result = new ArrayList<>();
+
+        DB db = DB.getInstance(context);
+        Cursor cursor = db.query("SELECT message.id, message.received FROM " + TABLE_NAME +
+                        " JOIN message ON message.id = " + TABLE_NAME + ".docid" +
+                        " WHERE " + TABLE_NAME + " MATCH ?" +
+                        " AND message.folder = ?" +
+                        " ORDER BY message.received DESC, message.sent DESC" +
+                        " LIMIT ? OFFSET ?",
+                new Object[]{query, folder, limit, offset});
+        try {
+            while (cursor.moveToNext())
+                result.add(new long[]{cursor.getLong(0), cursor.getLong(1)});
+        } finally {
+            cursor.close();
+        }
+
+        return result;
+    }
+
+    // Every word of the search text should match the start of a word in any column
+    static String getQuery(String search) {
+        StringBuilder sb = new StringBuilder();
+        for (String word : search.split("\\s+")) {
+            word = word.replace("\"", "");
+            if (word.length() > 0) {
+                if (sb.length() > 0)
+                    sb.append(' ');
+                sb.append('"').append(word).append("*\"");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -26,6 +26,8 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.media.RingtoneManager;
 import android.net.ConnectivityManager;
 import android.net.Network;
@@ -41,20 +43,27 @@ import android.text.Html;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.sun.mail.iap.ByteArray;
 import com.sun.mail.iap.ConnectionException;
 import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
 import com.sun.mail.imap.AppendUID;
 import com.sun.mail.imap.IMAPFolder;
 import com.sun.mail.imap.IMAPMessage;
 import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.MessageVanishedEvent;
+import com.sun.mail.imap.ResyncData;
+import com.sun.mail.imap.protocol.BODY;
 import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.imap.protocol.IMAPResponse;
+import com.sun.mail.imap.protocol.UIDSet;
+import com.sun.mail.smtp.SMTPTransport;
 import com.sun.mail.util.MailConnectException;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -65,15 +74,27 @@ import java.net.UnknownHostException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.mail.Address;
 import javax.mail.AuthenticationFailedException;
@@ -96,6 +117,7 @@ import javax.mail.event.ConnectionAdapter;
 import javax.mail.event.ConnectionEvent;
 import javax.mail.event.FolderAdapter;
 import javax.mail.event.FolderEvent;
+import javax.mail.event.MailEvent;
 import javax.mail.event.MessageChangedEvent;
 import javax.mail.event.MessageChangedListener;
 import javax.mail.event.MessageCountAdapter;
@@ -104,9 +126,9 @@ import javax.mail.event.StoreEvent;
 import javax.mail.event.StoreListener;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
 import javax.mail.internet.ParseException;
-import javax.mail.search.ComparisonTerm;
-import javax.mail.search.ReceivedDateTerm;
+import javax.mail.util.SharedFileInputStream;
 import javax.net.ssl.SSLException;
 
 import androidx.annotation.Nullable;
@@ -118,16 +140,34 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 
 public class ServiceSynchronize extends LifecycleService {
-    private final Object lock = new Object();
+    private final Map<Long, Object> locks = new HashMap<>(); // per folder
+    private final Map<Long, PooledTransport> transports = new HashMap<>(); // per identity
+    private final Map<Long, Downloader> downloaders = new HashMap<>(); // per account
     private ServiceManager serviceManager = new ServiceManager();
+    private long statsLogged = 0;
 
     private static final int NOTIFICATION_SYNCHRONIZE = 1;
     private static final int NOTIFICATION_UNSEEN = 2;
 
     private static final int CONNECT_BACKOFF_START = 32; // seconds
     private static final int CONNECT_BACKOFF_MAX = 1024; // seconds (1024 sec ~ 17 min)
-    private static final long STORE_NOOP_INTERVAL = 9 * 60 * 1000L; // ms
+    private static final int DEFAULT_CONNECTIONS = 3; // per account
+    private static final int DEFAULT_SYNC_BATCH = 20; // messages per fetch
+    private static final int PARSE_THREADS = 2;
+    private static final int DEFAULT_GROUP_ROWS = 200; // messages and attachments per commit
+    private static final int DEFAULT_GROUP_WINDOW = 2000; // milliseconds
+    private static final int DELETE_BATCH_SIZE = 500; // SQLite variable limit is 999
+    private static final int DEFAULT_DOWNLOAD_BUDGET = 1024 * 1024; // bytes per synchronization
     private static final int ATTACHMENT_AUTO_DOWNLOAD_SIZE = 32 * 1024; // bytes
+    private static final int DEFAULT_DOWNLOADS = 2; // concurrent attachment downloads per account
+    private static final int DOWNLOAD_CHUNK_SIZE = 256 * 1024; // bytes per fetch
+    private static final long TRANSPORT_IDLE_TIMEOUT = 60 * 1000L; // milliseconds
+    private static final long OPERATION_RETRY_START = 30 * 1000L; // milliseconds
+    private static final long OPERATION_RETRY_MAX = 3600 * 1000L; // milliseconds
+    private static final long OPERATION_STATS_INTERVAL = 5 * 60 * 1000L; // milliseconds
+
+    private static ExecutorService parser = Executors.newFixedThreadPool(PARSE_THREADS, Helper.backgroundThreadFactory);
+    private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(Helper.backgroundThreadFactory);
 
     static final String ACTION_SYNCHRONIZE_FOLDER = BuildConfig.APPLICATION_ID + ".SYNCHRONIZE_FOLDER";
     static final String ACTION_PROCESS_OPERATIONS = BuildConfig.APPLICATION_ID + ".PROCESS_OPERATIONS";
@@ -390,7 +430,6 @@ public class ServiceSynchronize extends LifecycleService {
 
     private void monitorAccount(final EntityAccount account, final ServiceState state) throws NoSuchProviderException {
         final DB db = DB.getInstance(this);
-        final ExecutorService executor = Executors.newSingleThreadExecutor(Helper.backgroundThreadFactory);
 
         int backoff = CONNECT_BACKOFF_START;
         while (state.running) {
@@ -415,7 +454,13 @@ public class ServiceSynchronize extends LifecycleService {
 
             final IMAPStore istore = (IMAPStore) isession.getStore("imaps");
             final Map<EntityFolder, IMAPFolder> folders = new HashMap<>();
-            List<Thread> noops = new ArrayList<>();
+            final List<EntityFolder> rotating = new ArrayList<>();
+
+            // At most one task per folder runs, and the rotating folders share one connection
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+            int connections = prefs.getInt("connections", DEFAULT_CONNECTIONS);
+            final FolderExecutor executor = new FolderExecutor(connections, Helper.backgroundThreadFactory);
+
             List<Thread> idlers = new ArrayList<>();
             try {
                 // Listen for store events
@@ -485,14 +530,44 @@ public class ServiceSynchronize extends LifecycleService {
                 synchronizeFolders(account, istore, state);
 
                 // Synchronize folders
-                for (final EntityFolder folder : db.folder().getFolders(account.id, true)) {
+                // - the highest priority folders get a connection of their own and will idle
+                // - the other folders take turns in the synchronization slot
+                List<EntityFolder> synchronizing = db.folder().getFolders(account.id, true);
+                Collections.sort(synchronizing, new Comparator<EntityFolder>() {
+                    @Override
+                    public int compare(EntityFolder f1, EntityFolder f2) {
+                        int u = Boolean.compare(f2.unified, f1.unified);
+                        if (u != 0)
+                            return u;
+                        return Integer.compare(
+                                EntityFolder.FOLDER_SORT_ORDER.indexOf(f1.type),
+                                EntityFolder.FOLDER_SORT_ORDER.indexOf(f2.type));
+                    }
+                });
+
+                int parallel = prefs.getInt("downloads", DEFAULT_DOWNLOADS);
+
+                // One connection is used for rotating folders and one is reserved for downloads
+                // Idling folders never take all connections, so that downloads always have a connection
+                boolean reserve = (parallel > 0 && connections > 2);
+                int idling = Math.max(1, connections - 1 - (reserve ? 1 : 0));
+                Log.i(Helper.TAG, account.name + " connections=" + connections + " folders=" + synchronizing.size() +
+                        " reserve=" + reserve);
+
+                for (final EntityFolder folder : synchronizing) {
+                    if (folders.size() >= idling) {
+                        Log.i(Helper.TAG, account.name + " rotate folder " + folder.name);
+                        rotating.add(folder);
+                        continue;
+                    }
+
                     Log.i(Helper.TAG, account.name + " sync folder " + folder.name);
 
                     db.folder().setFolderState(folder.id, "connecting");
 
                     final IMAPFolder ifolder = (IMAPFolder) istore.getFolder(folder.name);
                     try {
-                        ifolder.open(Folder.READ_WRITE);
+                        openFolder(folder, istore, ifolder);
                     } catch (Throwable ex) {
                         db.folder().setFolderError(folder.id, Helper.formatThrowable(ex));
                         throw ex;
@@ -502,8 +577,8 @@ public class ServiceSynchronize extends LifecycleService {
                     db.folder().setFolderState(folder.id, "connected");
                     db.folder().setFolderError(folder.id, null);
 
-                    // Keep folder connection alive
-                    Thread noop = new Thread(new Runnable() {
+                    // Synchronize and receive folder events
+                    Thread idler = new Thread(new Runnable() {
                         @Override
                         public void run() {
                             try {
@@ -514,12 +589,13 @@ public class ServiceSynchronize extends LifecycleService {
                                 ifolder.addMessageCountListener(new MessageCountAdapter() {
                                     @Override
                                     public void messagesAdded(MessageCountEvent e) {
-                                        synchronized (lock) {
+                                        synchronized (getLock(folder.id)) {
                                             try {
                                                 Log.i(Helper.TAG, folder.name + " messages added");
+                                                UidSet stored = fetchMessages(ServiceSynchronize.this, folder, ifolder, e.getMessages(), false, null);
                                                 for (Message imessage : e.getMessages())
                                                     try {
-                                                        synchronizeMessage(ServiceSynchronize.this, folder, ifolder, (IMAPMessage) imessage, false);
+                                                        synchronizeMessage(ServiceSynchronize.this, folder, ifolder, (IMAPMessage) imessage, false, stored);
                                                     } catch (MessageRemovedException ex) {
                                                         Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
                                                     }
@@ -539,20 +615,22 @@ public class ServiceSynchronize extends LifecycleService {
 
                                     @Override
                                     public void messagesRemoved(MessageCountEvent e) {
-                                        synchronized (lock) {
+                                        synchronized (getLock(folder.id)) {
                                             try {
                                                 Log.i(Helper.TAG, folder.name + " messages removed");
+                                                if (e instanceof MessageVanishedEvent)
+                                                    deleteVanished(folder, (MessageVanishedEvent) e);
+
+                                                long[] uids = new long[e.getMessages().length];
+                                                int removed = 0;
                                                 for (Message imessage : e.getMessages())
                                                     try {
-                                                        long uid = ifolder.getUID(imessage);
-
-                                                        DB db = DB.getInstance(ServiceSynchronize.this);
-                                                        int count = db.message().deleteMessage(folder.id, uid);
-
-                                                        Log.i(Helper.TAG, "Deleted uid=" + uid + " count=" + count);
+                                                        uids[removed++] = ifolder.getUID(imessage);
                                                     } catch (MessageRemovedException ex) {
                                                         Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
                                                     }
+                                                int count = deleteMessages(ServiceSynchronize.this, folder, Arrays.copyOf(uids, removed));
+                                                Log.i(Helper.TAG, folder.name + " removed=" + removed + " deleted=" + count);
                                             } catch (Throwable ex) {
                                                 Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
                                                 reportError(account.name, folder.name, ex);
@@ -576,11 +654,13 @@ public class ServiceSynchronize extends LifecycleService {
                                 ifolder.addMessageChangedListener(new MessageChangedListener() {
                                     @Override
                                     public void messageChanged(MessageChangedEvent e) {
-                                        synchronized (lock) {
+                                        synchronized (getLock(folder.id)) {
                                             try {
                                                 try {
                                                     Log.i(Helper.TAG, folder.name + " message changed");
-                                                    synchronizeMessage(ServiceSynchronize.this, folder, ifolder, (IMAPMessage) e.getMessage(), false);
+                                                    Message[] imessages = new Message[]{e.getMessage()};
+                                                    UidSet stored = fetchMessages(ServiceSynchronize.this, folder, ifolder, imessages, false, null);
+                                                    synchronizeMessage(ServiceSynchronize.this, folder, ifolder, (IMAPMessage) imessages[0], false, stored);
                                                     EntityOperation.process(ServiceSynchronize.this); // download small attachments
                                                 } catch (MessageRemovedException ex) {
                                                     Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
@@ -599,47 +679,7 @@ public class ServiceSynchronize extends LifecycleService {
                                     }
                                 });
 
-                                Log.i(Helper.TAG, folder.name + " start noop");
-                                while (state.running && ifolder.isOpen()) {
-                                    try {
-                                        Thread.sleep(account.poll_interval * 60 * 1000L);
-
-                                        Log.i(Helper.TAG, folder.name + " request NOOP");
-                                        ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
-                                            public Object doCommand(IMAPProtocol p) throws ProtocolException {
-                                                Log.i(Helper.TAG, ifolder.getName() + " start NOOP");
-                                                p.simpleCommand("NOOP", null);
-                                                Log.i(Helper.TAG, ifolder.getName() + " end NOOP");
-                                                return null;
-                                            }
-                                        });
-
-                                    } catch (InterruptedException ex) {
-                                        Log.w(Helper.TAG, folder.name + " noop " + ex.toString());
-                                    }
-                                }
-                            } catch (Throwable ex) {
-                                Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
-                                reportError(account.name, folder.name, ex);
-
-                                db.folder().setFolderError(folder.id, Helper.formatThrowable(ex));
-
-                                synchronized (state) {
-                                    state.notifyAll();
-                                }
-                            } finally {
-                                Log.i(Helper.TAG, folder.name + " end noop");
-                            }
-                        }
-                    }, "sync.noop." + folder.id);
-                    noop.start();
-                    noops.add(noop);
-
-                    // Receive folder events
-                    Thread idle = new Thread(new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
+                                // The account thread will keep the connection alive with NOOPs, which will end IDLE
                                 Log.i(Helper.TAG, folder.name + " start idle");
                                 while (state.running && ifolder.isOpen()) {
                                     Log.i(Helper.TAG, folder.name + " do idle");
@@ -660,19 +700,28 @@ public class ServiceSynchronize extends LifecycleService {
                             }
                         }
                     }, "sync.idle." + folder.id);
-                    idle.start();
-                    idlers.add(idle);
+                    idler.start();
+                    idlers.add(idler);
                 }
 
-                BroadcastReceiver processFolder = new BroadcastReceiver() {
+                final BroadcastReceiver processFolder = new BroadcastReceiver() {
                     @Override
                     public void onReceive(Context context, final Intent intent) {
-                        executor.submit(new Runnable() {
+                        // Operations of a folder don't wait for the work of other folders
+                        final long fid = intent.getLongExtra("folder", -1);
+                        boolean connected = false;
+                        for (EntityFolder f : folders.keySet())
+                            if (f.id == fid)
+                                connected = true;
+
+                        executor.submit(fid, connected, new Runnable() {
                             @Override
                             public void run() {
-                                long fid = intent.getLongExtra("folder", -1);
                                 Log.i(Helper.TAG, "Process folder=" + fid + " intent=" + intent);
 
+                                if (ACTION_PROCESS_OPERATIONS.equals(intent.getAction()))
+                                    OperationDispatcher.started(fid);
+
                                 // Get folder
                                 EntityFolder folder = null;
                                 IMAPFolder ifolder = null;
@@ -700,7 +749,7 @@ public class ServiceSynchronize extends LifecycleService {
                                         db.folder().setFolderState(folder.id, "connecting");
 
                                         ifolder = (IMAPFolder) istore.getFolder(folder.name);
-                                        ifolder.open(Folder.READ_WRITE);
+                                        openFolder(folder, istore, ifolder);
 
                                         db.folder().setFolderState(folder.id, "connected");
                                         db.folder().setFolderError(folder.id, null);
@@ -708,14 +757,22 @@ public class ServiceSynchronize extends LifecycleService {
 
                                     if (ACTION_PROCESS_OPERATIONS.equals(intent.getAction()))
                                         processOperations(folder, isession, istore, ifolder);
-                                    else if (ACTION_SYNCHRONIZE_FOLDER.equals(intent.getAction()))
+                                    else if (ACTION_SYNCHRONIZE_FOLDER.equals(intent.getAction())) {
+                                        if (shouldClose)
+                                            processOperations(folder, isession, istore, ifolder);
                                         synchronizeMessages(account, folder, ifolder, state);
+                                    }
 
                                 } catch (Throwable ex) {
-                                    Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
-                                    reportError(account.name, folder.name, ex);
-
-                                    db.folder().setFolderError(folder.id, Helper.formatThrowable(ex));
+                                    if (Thread.currentThread().isInterrupted() || ex instanceof InterruptedException)
+                                        // Stopping
+                                        Log.i(Helper.TAG, folder.name + " stopped " + ex);
+                                    else {
+                                        Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                                        reportError(account.name, folder.name, ex);
+
+                                        db.folder().setFolderError(folder.id, Helper.formatThrowable(ex));
+                                    }
                                 } finally {
                                     if (shouldClose) {
                                         if (ifolder != null && ifolder.isOpen()) {
@@ -734,27 +791,78 @@ public class ServiceSynchronize extends LifecycleService {
                     }
                 };
 
-                // Listen for folder operations
+                // Listen for folder synchronization requests
                 IntentFilter f = new IntentFilter();
                 f.addAction(ACTION_SYNCHRONIZE_FOLDER);
-                f.addAction(ACTION_PROCESS_OPERATIONS);
                 f.addDataType("account/" + account.id);
                 LocalBroadcastManager lbm = LocalBroadcastManager.getInstance(ServiceSynchronize.this);
                 lbm.registerReceiver(processFolder, f);
 
+                // Download attachments in parallel on the reserved connection and the connections left over
+                // Without spare connections attachments are downloaded as part of the folder operations
+                int downloads = (reserve ? Math.max(1, Math.min(parallel, connections - 1 - folders.size())) : 0);
+                if (downloads > 0)
+                    Log.i(Helper.TAG, account.name + " downloads=" + downloads);
+                else
+                    Log.w(Helper.TAG, account.name + " parallel downloads disabled" +
+                            " connections=" + connections + " downloads=" + parallel);
+                final Downloader downloader = (downloads > 0 ? new Downloader(account, istore, downloads) : null);
+                if (downloader != null)
+                    synchronized (downloaders) {
+                        downloaders.put(account.id, downloader);
+                    }
+
+                // Listen for folder operations
+                OperationDispatcher.register(account.id, new OperationDispatcher.Listener() {
+                    @Override
+                    public void onOperations(long folder) {
+                        processFolder.onReceive(ServiceSynchronize.this,
+                                new Intent(ACTION_PROCESS_OPERATIONS).putExtra("folder", folder));
+                    }
+                });
+
                 try {
                     // Keep store alive
+                    long next = 0;
                     while (state.running && istore.isConnected()) {
                         Log.i(Helper.TAG, "Checking folders");
                         for (EntityFolder folder : folders.keySet())
                             if (!folders.get(folder).isOpen())
                                 throw new FolderClosedException(folders.get(folder));
 
-                        // Wait for stop or folder error
+                        long now = SystemClock.elapsedRealtime();
+                        if (now >= next) {
+                            // Keep folder connections alive
+                            if (next > 0)
+                                for (EntityFolder folder : folders.keySet()) {
+                                    final IMAPFolder ifolder = folders.get(folder);
+                                    Log.i(Helper.TAG, folder.name + " request NOOP");
+                                    ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+                                        public Object doCommand(IMAPProtocol p) throws ProtocolException {
+                                            Log.i(Helper.TAG, ifolder.getName() + " start NOOP");
+                                            p.simpleCommand("NOOP", null);
+                                            Log.i(Helper.TAG, ifolder.getName() + " end NOOP");
+                                            return null;
+                                        }
+                                    });
+                                }
+
+                            // Give the other folders a synchronization slot
+                            for (EntityFolder folder : rotating) {
+                                Log.i(Helper.TAG, folder.name + " request slot");
+                                lbm.sendBroadcast(new Intent(ACTION_SYNCHRONIZE_FOLDER)
+                                        .setType("account/" + account.id)
+                                        .putExtra("folder", folder.id));
+                            }
+
+                            next = now + account.poll_interval * 60 * 1000L;
+                        }
+
+                        // Wait for stop, folder error or next round
                         Log.i(Helper.TAG, account.name + " wait");
                         synchronized (state) {
                             try {
-                                state.wait(STORE_NOOP_INTERVAL);
+                                state.wait(next - now);
                             } catch (InterruptedException ex) {
                                 Log.w(Helper.TAG, account.name + " wait " + ex.toString());
                             }
@@ -763,7 +871,14 @@ public class ServiceSynchronize extends LifecycleService {
                     }
                     Log.i(Helper.TAG, account.name + " done running=" + state.running);
                 } finally {
+                    OperationDispatcher.unregister(account.id);
                     lbm.unregisterReceiver(processFolder);
+                    if (downloader != null) {
+                        synchronized (downloaders) {
+                            downloaders.remove(account.id);
+                        }
+                        downloader.stop();
+                    }
                 }
             } catch (Throwable ex) {
                 Log.e(Helper.TAG, account.name + " " + ex + "\n" + Log.getStackTraceString(ex));
@@ -789,17 +904,14 @@ public class ServiceSynchronize extends LifecycleService {
                         db.folder().setFolderState(folder.id, null);
                 }
 
-                // Stop noop
-                for (Thread noop : noops) {
-                    noop.interrupt();
-                    join(noop);
-                }
-
                 // Stop idle
-                for (Thread idle : idlers) {
-                    idle.interrupt();
-                    join(idle);
+                for (Thread idler : idlers) {
+                    idler.interrupt();
+                    join(idler);
                 }
+
+                // Stop folder operations
+                executor.shutdownNow();
             }
 
             if (state.running) {
@@ -820,15 +932,136 @@ public class ServiceSynchronize extends LifecycleService {
         EntityLog.log(this, account.name + " stopped");
     }
 
-    private void processOperations(EntityFolder folder, Session isession, IMAPStore istore, IMAPFolder ifolder) throws MessagingException, JSONException, IOException {
-        synchronized (lock) {
+    private void openFolder(EntityFolder folder, IMAPStore istore, IMAPFolder ifolder) throws MessagingException {
+        // https://tools.ietf.org/html/rfc7162
+        if (istore.hasCapability("QRESYNC") &&
+                folder.uid_validity != null && folder.highest_modseq != null) {
+            Log.i(Helper.TAG, folder.name + " open QRESYNC" +
+                    " uidvalidity=" + folder.uid_validity + " modseq=" + folder.highest_modseq);
+            List<MailEvent> events = ifolder.open(Folder.READ_WRITE,
+                    new ResyncData(folder.uid_validity, folder.highest_modseq));
+            if (events != null)
+                for (MailEvent event : events)
+                    if (event instanceof MessageVanishedEvent)
+                        deleteVanished(folder, (MessageVanishedEvent) event);
+        } else if (istore.hasCapability("CONDSTORE"))
+            ifolder.open(Folder.READ_WRITE, ResyncData.CONDSTORE);
+        else
+            ifolder.open(Folder.READ_WRITE);
+    }
+
+    private void deleteVanished(EntityFolder folder, MessageVanishedEvent event) {
+        long[] uids = event.getUIDs();
+        int count = deleteMessages(this, folder, uids);
+        Log.i(Helper.TAG, folder.name + " vanished=" + uids.length + " deleted=" + count);
+    }
+
+    // Deletes messages by uid in batches, in one transaction
+    private static int deleteMessages(Context context, EntityFolder folder, long[] uids) {
+        if (uids.length == 0)
+            return 0;
+
+        DB db = DB.getInstance(context);
+        int count = 0;
+        try {
+            db.beginTransaction();
+            for (int i = 0; i < uids.length; i += DELETE_BATCH_SIZE)
+                count += db.message().deleteMessages(folder.id,
+                        Arrays.copyOfRange(uids, i, Math.min(uids.length, i + DELETE_BATCH_SIZE)));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    private static Long getHighestModSeq(IMAPStore istore, IMAPFolder ifolder) throws MessagingException {
+        if (!istore.hasCapability("CONDSTORE"))
+            return null;
+        try {
+            long modseq = ifolder.getHighestModSeq();
+            return (modseq > 0 ? modseq : null); // NOMODSEQ
+        } catch (MessagingException ex) {
+            Log.w(Helper.TAG, ifolder.getName() + " " + ex + "\n" + Log.getStackTraceString(ex));
+            return null;
+        }
+    }
+
+    private Object getLock(long folder) {
+        // Events and operations of a folder are serialized, while different folders proceed concurrently
+        synchronized (locks) {
+            Object lock = locks.get(folder);
+            if (lock == null) {
+                lock = new Object();
+                locks.put(folder, lock);
+            }
+            return lock;
+        }
+    }
+
+    private void removeLock(long folder) {
+        synchronized (locks) {
+            locks.remove(folder);
+        }
+    }
+
+    private void processOperations(EntityFolder folder, Session isession, IMAPStore istore, IMAPFolder ifolder) throws MessagingException, IOException {
+        synchronized (getLock(folder.id)) {
             try {
                 Log.i(Helper.TAG, folder.name + " start process");
 
                 DB db = DB.getInstance(this);
-                List<EntityOperation> ops = db.operation().getOperationsByFolder(folder.id);
+
+                // Counting all operations takes a table scan
+                long now = SystemClock.elapsedRealtime();
+                if (now - statsLogged >= OPERATION_STATS_INTERVAL ||
+                        PreferenceManager.getDefaultSharedPreferences(this).getBoolean("debug", false)) {
+                    statsLogged = now;
+                    for (TupleOperationStats stats : db.operation().getOperationStats())
+                        Log.i(Helper.TAG, "Operations priority=" + stats.priority +
+                                " count=" + stats.operations +
+                                " retrying=" + stats.retrying +
+                                " oldest=" + (stats.oldest == null ? null : new Date(stats.oldest)));
+                }
+
+                List<EntityOperation> ops = db.operation().getOperationsByFolder(folder.id, new Date().getTime());
                 Log.i(Helper.TAG, folder.name + " pending operations=" + ops.size());
-                for (EntityOperation op : ops)
+                List<Long> deferred = new ArrayList<>();
+                for (int i = 0; i < ops.size(); i++) {
+                    EntityOperation op = ops.get(i);
+
+                    // Keep the order of the operations of a message
+                    if (deferred.contains(op.message)) {
+                        Log.i(Helper.TAG, folder.name + " waiting op=" + op.id + "/" + op.name);
+                        continue;
+                    }
+
+                    // Attachments are downloaded on their own connections
+                    if (EntityOperation.ATTACHMENT.equals(op.name)) {
+                        Downloader downloader;
+                        synchronized (downloaders) {
+                            downloader = downloaders.get(folder.account);
+                        }
+                        if (downloader != null) {
+                            downloader.download(folder, op);
+                            deferred.add(op.message);
+                            continue;
+                        }
+                    }
+
+                    // Coalesce consecutive operations of the same kind into one command over a set of messages
+                    List<EntityMessage> messages = new ArrayList<>();
+                    List<EntityOperation> group = getGroup(istore, ops, i, messages, db);
+                    if (group.size() > 1)
+                        try {
+                            doGroup(folder, istore, ifolder, group, messages, db);
+                            i += group.size() - 1;
+                            continue;
+                        } catch (Throwable ex) {
+                            // Process the operations one by one to resolve the error per message
+                            Log.w(Helper.TAG, folder.name + " group " + ex + "\n" + Log.getStackTraceString(ex));
+                        }
+
                     try {
                         Log.i(Helper.TAG, folder.name +
                                 " start op=" + op.id + "/" + op.name +
@@ -846,37 +1079,41 @@ public class ServiceSynchronize extends LifecycleService {
                                     (EntityOperation.SEEN.equals(op.name) ||
                                             EntityOperation.DELETE.equals(op.name) ||
                                             EntityOperation.MOVE.equals(op.name) ||
-                                            EntityOperation.HEADERS.equals(op.name)))
+                                            EntityOperation.HEADERS.equals(op.name) ||
+                                            EntityOperation.BODY.equals(op.name)))
                                 throw new IllegalArgumentException(op.name + " without uid");
 
-                            JSONArray jargs = new JSONArray(op.args);
-
                             if (EntityOperation.SEEN.equals(op.name))
-                                doSeen(folder, ifolder, message, jargs, db);
+                                doSeen(folder, ifolder, message, op, db);
 
                             else if (EntityOperation.ADD.equals(op.name))
-                                doAdd(folder, isession, ifolder, message, jargs, db);
+                                doAdd(folder, isession, ifolder, message, db);
 
                             else if (EntityOperation.MOVE.equals(op.name))
-                                doMove(folder, isession, istore, ifolder, message, jargs, db);
+                                doMove(folder, isession, istore, ifolder, message, op, db);
 
                             else if (EntityOperation.DELETE.equals(op.name))
-                                doDelete(folder, ifolder, message, jargs, db);
+                                doDelete(folder, istore, ifolder, message, db);
 
                             else if (EntityOperation.SEND.equals(op.name))
                                 doSend(message, db);
 
                             else if (EntityOperation.ATTACHMENT.equals(op.name))
-                                doAttachment(folder, op, ifolder, message, jargs, db);
+                                doAttachment(folder, op, ifolder, message, db);
 
                             else if (EntityOperation.HEADERS.equals(op.name))
                                 doHeaders(folder, ifolder, message, db);
 
+                            else if (EntityOperation.BODY.equals(op.name))
+                                doBody(folder, ifolder, message, db);
+
                             else
                                 throw new MessagingException("Unknown operation name=" + op.name);
 
                             // Operation succeeded
                             db.operation().deleteOperation(op.id);
+                            Log.i(Helper.TAG, folder.name + " op=" + op.name + " priority=" + op.priority +
+                                    " attempts=" + op.attempts + " latency=" + (new Date().getTime() - op.created) + " ms");
                         } catch (Throwable ex) {
                             // TODO: SMTP response codes: https://www.ietf.org/rfc/rfc821.txt
                             if (ex instanceof SendFailedException)
@@ -901,20 +1138,138 @@ public class ServiceSynchronize extends LifecycleService {
                                 }
                             }
 
-                            throw ex;
+                            // Connection problems are handled by reconnecting
+                            if (isConnectionError(ex, ifolder))
+                                throw ex;
+
+                            // Retry later without blocking the other operations
+                            int attempts = op.attempts + 1;
+                            long delay = Math.min(OPERATION_RETRY_MAX, OPERATION_RETRY_START << Math.min(attempts - 1, 16));
+                            db.operation().setOperationRetry(op.id, attempts, new Date().getTime() + delay);
+                            deferred.add(op.message);
+                            Log.w(Helper.TAG, folder.name + " deferred op=" + op.id + "/" + op.name +
+                                    " attempts=" + attempts + " delay=" + delay + " ms");
+                            scheduleOperations(folder, delay);
                         }
                     } finally {
                         Log.i(Helper.TAG, folder.name + " end op=" + op.id + "/" + op.name);
                     }
+                }
             } finally {
                 Log.i(Helper.TAG, folder.name + " end process");
             }
         }
     }
 
-    private void doSeen(EntityFolder folder, IMAPFolder ifolder, EntityMessage message, JSONArray jargs, DB db) throws MessagingException, JSONException {
+    private static boolean isConnectionError(Throwable ex, IMAPFolder ifolder) {
+        if (ex instanceof FolderClosedException ||
+                ex instanceof StoreClosedException ||
+                ex instanceof IOException)
+            return true;
+        if (ex instanceof MessagingException &&
+                (ex.getCause() instanceof IOException || ex.getCause() instanceof ConnectionException))
+            return true;
+        return (ifolder != null && !ifolder.isOpen());
+    }
+
+    private void scheduleOperations(final EntityFolder folder, long delay) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                OperationDispatcher.dispatch(EntityFolder.OUTBOX.equals(folder.type) ? null : folder.account, folder.id);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private List<EntityOperation> getGroup(IMAPStore istore, List<EntityOperation> ops, int index, List<EntityMessage> messages, DB db) throws MessagingException {
+        List<EntityOperation> group = new ArrayList<>();
+
+        EntityOperation first = ops.get(index);
+        if (istore == null ||
+                !(EntityOperation.SEEN.equals(first.name) ||
+                        EntityOperation.DELETE.equals(first.name) ||
+                        (EntityOperation.MOVE.equals(first.name) && istore.hasCapability("MOVE"))))
+            return group;
+
+        for (int i = index; i < ops.size(); i++) {
+            EntityOperation op = ops.get(i);
+            if (!first.name.equals(op.name) ||
+                    !Objects.equals(first.seen, op.seen) ||
+                    !Objects.equals(first.target, op.target))
+                break;
+
+            EntityMessage message = db.message().getMessage(op.message);
+            if (message == null || message.uid == null)
+                break;
+
+            group.add(op);
+            messages.add(message);
+        }
+
+        return group;
+    }
+
+    private void doGroup(EntityFolder folder, IMAPStore istore, IMAPFolder ifolder, List<EntityOperation> ops, List<EntityMessage> messages, DB db) throws MessagingException {
+        EntityOperation first = ops.get(0);
+        Log.i(Helper.TAG, folder.name + " group op=" + first.name + " args=" + first.args + " count=" + ops.size());
+
+        long[] uids = new long[messages.size()];
+        for (int i = 0; i < messages.size(); i++)
+            uids[i] = messages.get(i).uid;
+        Message[] imessages = ifolder.getMessagesByUID(uids);
+
+        List<Message> existing = new ArrayList<>();
+        for (int i = 0; i < imessages.length; i++)
+            if (imessages[i] == null) {
+                // There is no use in repeating
+                db.message().setMessageError(messages.get(i).id, Helper.formatThrowable(new MessageRemovedException()));
+                db.operation().deleteOperation(ops.get(i).id);
+            } else
+                existing.add(imessages[i]);
+
+        Message[] iexisting = existing.toArray(new Message[0]);
+        if (iexisting.length > 0) {
+            if (EntityOperation.SEEN.equals(first.name))
+                ifolder.setFlags(iexisting, new Flags(Flags.Flag.SEEN), first.seen);
+
+            else if (EntityOperation.DELETE.equals(first.name)) {
+                ifolder.setFlags(iexisting, new Flags(Flags.Flag.DELETED), true);
+                expunge(istore, ifolder, iexisting);
+
+            } else if (EntityOperation.MOVE.equals(first.name)) {
+                EntityFolder target = db.folder().getFolder(first.target);
+                if (target == null)
+                    throw new FolderNotFoundException();
+                ifolder.moveMessages(iexisting, istore.getFolder(target.name));
+            }
+        }
+
+        // Resolve the result per operation
+        for (int i = 0; i < imessages.length; i++)
+            if (imessages[i] != null) {
+                EntityMessage message = messages.get(i);
+                if (EntityOperation.SEEN.equals(first.name)) {
+                    db.message().setMessageSeen(message.id, first.seen);
+                    db.message().setMessageError(message.id, null);
+                } else if (EntityOperation.DELETE.equals(first.name))
+                    db.message().deleteMessage(message.id);
+                else
+                    db.message().setMessageError(message.id, null);
+                db.operation().deleteOperation(ops.get(i).id);
+            }
+    }
+
+    private static void expunge(IMAPStore istore, IMAPFolder ifolder, Message[] imessages) throws MessagingException {
+        // Expunge just the specified messages, instead of all deleted messages in the folder
+        if (istore.hasCapability("UIDPLUS"))
+            ifolder.expunge(imessages);
+        else
+            ifolder.expunge();
+    }
+
+    private void doSeen(EntityFolder folder, IMAPFolder ifolder, EntityMessage message, EntityOperation op, DB db) throws MessagingException {
         // Mark message (un)seen
-        boolean seen = jargs.getBoolean(0);
+        boolean seen = op.seen;
         Message imessage = ifolder.getMessageByUID(message.uid);
         if (imessage == null)
             throw new MessageRemovedException();
@@ -924,11 +1279,26 @@ public class ServiceSynchronize extends LifecycleService {
         db.message().setMessageSeen(message.id, seen);
     }
 
-    private void doAdd(EntityFolder folder, Session isession, IMAPFolder ifolder, EntityMessage message, JSONArray jargs, DB db) throws MessagingException, JSONException, IOException {
+    private void doAdd(EntityFolder folder, Session isession, IMAPFolder ifolder, EntityMessage message, DB db) throws MessagingException, IOException {
         // Append message
-        List<EntityAttachment> attachments = db.attachment().getAttachments(message.id);
-        MimeMessage imessage = MessageHelper.from(this, message, attachments, isession);
-        AppendUID[] uid = ifolder.appendUIDMessages(new Message[]{imessage});
+        AppendUID[] uid;
+        File spool = EntityMessage.getSpoolFile(this, message.id);
+        if (spool.exists()) {
+            // Append the sent message as it was sent
+            SharedFileInputStream is = new SharedFileInputStream(spool);
+            try {
+                MimeMessage imessage = new MimeMessageEx(isession, is, message.msgid);
+                imessage.setFlag(Flags.Flag.SEEN, message.seen);
+                uid = ifolder.appendUIDMessages(new Message[]{imessage});
+            } finally {
+                is.close();
+            }
+            spool.delete();
+        } else {
+            List<EntityAttachment> attachments = db.attachment().getAttachments(message.id);
+            MimeMessage imessage = MessageHelper.from(this, message, attachments, isession);
+            uid = ifolder.appendUIDMessages(new Message[]{imessage});
+        }
         db.message().setMessageUid(message.id, uid[0].uid);
         Log.i(Helper.TAG, "Appended uid=" + uid[0].uid);
 
@@ -937,14 +1307,14 @@ public class ServiceSynchronize extends LifecycleService {
             if (iprev != null) {
                 Log.i(Helper.TAG, "Deleting existing uid=" + message.uid);
                 iprev.setFlag(Flags.Flag.DELETED, true);
-                ifolder.expunge();
+                expunge((IMAPStore) ifolder.getStore(), ifolder, new Message[]{iprev});
             }
         }
     }
 
-    private void doMove(EntityFolder folder, Session isession, IMAPStore istore, IMAPFolder ifolder, EntityMessage message, JSONArray jargs, DB db) throws JSONException, MessagingException, IOException {
+    private void doMove(EntityFolder folder, Session isession, IMAPStore istore, IMAPFolder ifolder, EntityMessage message, EntityOperation op, DB db) throws MessagingException, IOException {
         // Move message
-        long id = jargs.getLong(0);
+        long id = op.target;
         EntityFolder target = db.folder().getFolder(id);
         if (target == null)
             throw new FolderNotFoundException();
@@ -962,9 +1332,13 @@ public class ServiceSynchronize extends LifecycleService {
 
             List<EntityAttachment> attachments = db.attachment().getAttachments(message.id);
 
+            // The text is needed to recreate the message
+            if (!message.content)
+                doBody(folder, ifolder, message, db);
+
             if (!EntityFolder.ARCHIVE.equals(folder.type)) {
                 imessage.setFlag(Flags.Flag.DELETED, true);
-                ifolder.expunge();
+                expunge(istore, ifolder, new Message[]{imessage});
             }
 
             MimeMessageEx icopy = MessageHelper.from(this, message, attachments, isession);
@@ -973,14 +1347,14 @@ public class ServiceSynchronize extends LifecycleService {
         }
     }
 
-    private void doDelete(EntityFolder folder, IMAPFolder ifolder, EntityMessage message, JSONArray jargs, DB db) throws MessagingException, JSONException {
+    private void doDelete(EntityFolder folder, IMAPStore istore, IMAPFolder ifolder, EntityMessage message, DB db) throws MessagingException {
         // Delete message
         Message imessage = ifolder.getMessageByUID(message.uid);
         if (imessage == null)
             throw new MessageRemovedException();
 
         imessage.setFlag(Flags.Flag.DELETED, true);
-        ifolder.expunge();
+        expunge(istore, ifolder, new Message[]{imessage});
 
         db.message().deleteMessage(message.id);
     }
@@ -993,41 +1367,39 @@ public class ServiceSynchronize extends LifecycleService {
             return;
         }
 
-        // Refresh token
-        if (ident.auth_type == Helper.AUTH_TYPE_GMAIL) {
-            ident.password = Helper.refreshToken(this, "com.google", ident.user, ident.password);
-            db.identity().setIdentityPassword(ident.id, ident.password);
-        }
-
-        // Create session
-        Properties props = MessageHelper.getSessionProperties(this, ident.auth_type);
-        final Session isession = Session.getInstance(props, null);
-
-        // Create message
-        MimeMessage imessage;
-        EntityMessage reply = (message.replying == null ? null : db.message().getMessage(message.replying));
-        List<EntityAttachment> attachments = db.attachment().getAttachments(message.id);
-        if (reply == null)
-            imessage = MessageHelper.from(this, message, attachments, isession);
-        else
-            imessage = MessageHelper.from(this, message, reply, attachments, isession);
+        // Get a connected transport, reusing the one of the previous message if possible
+        PooledTransport pooled = acquireTransport(ident, db);
+        boolean reusable = false;
+        boolean appending = false;
+        File spool = EntityMessage.getSpoolFile(this, message.id);
+        try {
+            // Create message
+            MimeMessage imessage;
+            EntityMessage reply = (message.replying == null ? null : db.message().getMessage(message.replying));
+            List<EntityAttachment> attachments = db.attachment().getAttachments(message.id);
+            if (reply == null)
+                imessage = MessageHelper.from(this, message, attachments, pooled.isession);
+            else
+                imessage = MessageHelper.from(this, message, reply, attachments, pooled.isession);
 
-        if (ident.replyto != null)
-            imessage.setReplyTo(new Address[]{new InternetAddress(ident.replyto)});
+            if (ident.replyto != null)
+                imessage.setReplyTo(new Address[]{new InternetAddress(ident.replyto)});
 
-        // Create transport
-        // TODO: cache transport?
-        Transport itransport = isession.getTransport(ident.starttls ? "smtp" : "smtps");
-        try {
-            // Connect transport
-            db.identity().setIdentityState(ident.id, "connecting");
-            itransport.connect(ident.host, ident.port, ident.user, ident.password);
-            db.identity().setIdentityState(ident.id, "connected");
-            db.identity().setIdentityError(ident.id, null);
+            // Encode message once
+            MessageHelper.spool(imessage, spool);
+            Log.i(Helper.TAG, "Spooled size=" + spool.length());
 
             // Send message
-            Address[] to = imessage.getAllRecipients();
-            itransport.sendMessage(imessage, to);
+            Address[] to;
+            SharedFileInputStream is = new SharedFileInputStream(spool);
+            try {
+                imessage = new MimeMessageEx(pooled.isession, is, message.msgid);
+                to = imessage.getAllRecipients();
+                pooled.itransport.sendMessage(imessage, to);
+            } finally {
+                is.close();
+            }
+            reusable = true;
             Log.i(Helper.TAG, "Sent via " + ident.host + "/" + ident.user +
                     " to " + TextUtils.join(", ", to));
 
@@ -1049,6 +1421,7 @@ public class ServiceSynchronize extends LifecycleService {
                         db.message().updateMessage(message);
                         Log.i(Helper.TAG, "Appending sent msgid=" + message.msgid);
                         EntityOperation.queue(db, message, EntityOperation.ADD); // Could already exist
+                        appending = true;
                     }
                 }
 
@@ -1062,17 +1435,151 @@ public class ServiceSynchronize extends LifecycleService {
             db.identity().setIdentityError(ident.id, Helper.formatThrowable(ex));
             throw ex;
         } finally {
-            try {
-                itransport.close();
-            } finally {
-                db.identity().setIdentityState(ident.id, null);
+            // The spooled message is appended to the sent folder
+            if (!appending)
+                spool.delete();
+
+            if (reusable)
+                releaseTransport(pooled);
+            else
+                closeTransport(pooled);
+        }
+    }
+
+    private PooledTransport acquireTransport(EntityIdentity ident, DB db) throws MessagingException {
+        PooledTransport pooled;
+        synchronized (transports) {
+            pooled = transports.remove(ident.id);
+        }
+
+        if (pooled != null) {
+            // The identity could have been changed in the meantime
+            boolean reuse = (ident.host.equals(pooled.host) &&
+                    ident.port.equals(pooled.port) &&
+                    ident.starttls.equals(pooled.starttls) &&
+                    ident.user.equals(pooled.user) &&
+                    ident.password.equals(pooled.password) &&
+                    ident.auth_type.equals(pooled.auth_type) &&
+                    SystemClock.elapsedRealtime() - pooled.used < TRANSPORT_IDLE_TIMEOUT);
+            if (reuse)
+                try {
+                    // Health check (NOOP) and reset of the previous mail transaction
+                    reuse = pooled.itransport.isConnected();
+                    if (reuse) {
+                        int reply = ((SMTPTransport) pooled.itransport).simpleCommand("RSET");
+                        if (reply != 250) {
+                            Log.w(Helper.TAG, ident.host + " RSET reply=" + reply);
+                            reuse = false;
+                        }
+                    }
+                } catch (MessagingException ex) {
+                    Log.w(Helper.TAG, ident.host + " " + ex + "\n" + Log.getStackTraceString(ex));
+                    reuse = false;
+                }
+
+            if (reuse) {
+                Log.i(Helper.TAG, "Reusing transport " + ident.host + "/" + ident.user);
+                return pooled;
+            }
+
+            closeTransport(pooled);
+        }
+
+        // Refresh token
+        if (ident.auth_type == Helper.AUTH_TYPE_GMAIL) {
+            ident.password = Helper.refreshToken(this, "com.google", ident.user, ident.password);
+            db.identity().setIdentityPassword(ident.id, ident.password);
+        }
+
+        // Create session
+        Properties props = MessageHelper.getSessionProperties(this, ident.auth_type);
+        pooled = new PooledTransport();
+        pooled.identity = ident.id;
+        pooled.host = ident.host;
+        pooled.port = ident.port;
+        pooled.starttls = ident.starttls;
+        pooled.user = ident.user;
+        pooled.password = ident.password;
+        pooled.auth_type = ident.auth_type;
+        pooled.isession = Session.getInstance(props, null);
+        pooled.itransport = pooled.isession.getTransport(ident.starttls ? "smtp" : "smtps");
+
+        // Connect transport
+        try {
+            db.identity().setIdentityState(ident.id, "connecting");
+            pooled.itransport.connect(ident.host, ident.port, ident.user, ident.password);
+            db.identity().setIdentityState(ident.id, "connected");
+            db.identity().setIdentityError(ident.id, null);
+        } catch (MessagingException ex) {
+            db.identity().setIdentityError(ident.id, Helper.formatThrowable(ex));
+            closeTransport(pooled);
+            throw ex;
+        }
+
+        return pooled;
+    }
+
+    private void releaseTransport(PooledTransport pooled) {
+        pooled.used = SystemClock.elapsedRealtime();
+
+        PooledTransport previous;
+        synchronized (transports) {
+            previous = transports.put(pooled.identity, pooled);
+        }
+        if (previous != null)
+            closeTransport(previous);
+
+        // Close the transport when it is not used anymore
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                closeTransports(false);
             }
+        }, TRANSPORT_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private void closeTransports(boolean all) {
+        List<PooledTransport> idle = new ArrayList<>();
+        synchronized (transports) {
+            long now = SystemClock.elapsedRealtime();
+            for (Long identity : new ArrayList<>(transports.keySet())) {
+                PooledTransport pooled = transports.get(identity);
+                if (all || now - pooled.used >= TRANSPORT_IDLE_TIMEOUT)
+                    idle.add(transports.remove(identity));
+            }
+        }
+
+        for (PooledTransport pooled : idle)
+            closeTransport(pooled);
+    }
+
+    private void closeTransport(PooledTransport pooled) {
+        try {
+            Log.i(Helper.TAG, "Closing transport identity=" + pooled.identity);
+            pooled.itransport.close();
+        } catch (MessagingException ex) {
+            Log.w(Helper.TAG, ex + "\n" + Log.getStackTraceString(ex));
+        } finally {
+            DB.getInstance(this).identity().setIdentityState(pooled.identity, null);
         }
     }
 
-    private void doAttachment(EntityFolder folder, EntityOperation op, IMAPFolder ifolder, EntityMessage message, JSONArray jargs, DB db) throws JSONException, MessagingException, IOException {
+    private static class PooledTransport {
+        long identity;
+        String host;
+        Integer port;
+        Boolean starttls;
+        String user;
+        String password;
+        Integer auth_type;
+        Session isession;
+        Transport itransport;
+        long used;
+    }
+
+    private void doAttachment(EntityFolder folder, EntityOperation op, IMAPFolder ifolder, EntityMessage message, DB db) throws MessagingException, IOException {
         // Download attachment
-        int sequence = jargs.getInt(0);
+        int sequence = op.sequence;
 
         EntityAttachment attachment = db.attachment().getAttachment(op.message, sequence);
         if (attachment == null)
@@ -1080,22 +1587,63 @@ public class ServiceSynchronize extends LifecycleService {
 
         try {
             // Get message
-            Message imessage = ifolder.getMessageByUID(message.uid);
+            final IMAPMessage imessage = (IMAPMessage) ifolder.getMessageByUID(message.uid);
             if (imessage == null)
                 throw new MessageRemovedException();
 
-            // Get attachment
-            MessageHelper helper = new MessageHelper((MimeMessage) imessage);
-            EntityAttachment a = helper.getAttachments().get(sequence - 1);
+            // Locate the part of attachments stored without section
+            if (attachment.section == null) {
+                MessageHelper helper = new MessageHelper(imessage);
+                EntityAttachment a = helper.getAttachments().get(sequence - 1);
+                attachment.section = a.section;
+                attachment.encoding = a.encoding;
+                attachment.size = a.size;
+                db.attachment().updateAttachment(attachment);
+            }
 
-            // Build filename
-            File file = EntityAttachment.getFile(this, attachment.id);
+            // Fetch the encoded part in ranges, continuing after the bytes already downloaded
+            final String section = attachment.section;
+            File part = EntityAttachment.getPartFile(this, attachment.id);
+            OutputStream os = new FileOutputStream(part, true);
+            try {
+                long offset = part.length();
+                Log.i(Helper.TAG, folder.name + " download section=" + section + " offset=" + offset);
+                while (true) {
+                    final int start = (int) offset;
+                    BODY body = (BODY) ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+                        @Override
+                        public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+                            // The message number changes when other messages are expunged
+                            return protocol.peekBody(imessage.getMessageNumber(), section, start, DOWNLOAD_CHUNK_SIZE);
+                        }
+                    });
+                    if (imessage.isExpunged())
+                        throw new MessageRemovedException();
+
+                    ByteArray data = (body == null ? null : body.getByteArray());
+                    int count = (data == null ? 0 : data.getCount());
+                    if (count > 0) {
+                        os.write(data.getBytes(), data.getStart(), count);
+                        offset += count;
+                    }
+
+                    AttachmentProgress.set(attachment.id, offset, attachment.size);
+
+                    if (count < DOWNLOAD_CHUNK_SIZE)
+                        break;
+                }
+            } finally {
+                os.close();
+            }
 
-            // Download attachment
+            // Decode the part
+            File file = EntityAttachment.getTempFile(this, attachment.id);
             InputStream is = null;
-            OutputStream os = null;
+            os = null;
             try {
-                is = a.part.getInputStream();
+                is = new BufferedInputStream(new FileInputStream(part));
+                if (attachment.encoding != null)
+                    is = MimeUtility.decode(is, attachment.encoding);
                 os = new BufferedOutputStream(new FileOutputStream(file));
 
                 int size = 0;
@@ -1103,17 +1651,10 @@ public class ServiceSynchronize extends LifecycleService {
                 for (int len = is.read(buffer); len != -1; len = is.read(buffer)) {
                     size += len;
                     os.write(buffer, 0, len);
-
-                    // Update progress
-                    if (attachment.size != null)
-                        db.attachment().setProgress(attachment.id, size * 100 / attachment.size);
                 }
 
-                // Store attachment data
                 attachment.size = size;
                 attachment.progress = null;
-                attachment.available = true;
-                db.attachment().updateAttachment(attachment);
             } finally {
                 try {
                     if (is != null)
@@ -1123,12 +1664,18 @@ public class ServiceSynchronize extends LifecycleService {
                         os.close();
                 }
             }
+
+            // Store attachment data
+            attachment.store(this, db, file);
+            part.delete();
             Log.i(Helper.TAG, folder.name + " downloaded bytes=" + attachment.size);
         } catch (Throwable ex) {
-            // Reset progress on failure
+            // Reset progress on failure, the downloaded bytes are kept to resume later
             attachment.progress = null;
             db.attachment().updateAttachment(attachment);
             throw ex;
+        } finally {
+            AttachmentProgress.clear(attachment.id);
         }
     }
 
@@ -1143,6 +1690,23 @@ public class ServiceSynchronize extends LifecycleService {
         db.message().setMessageHeaders(message.id, sb.toString());
     }
 
+    private void doBody(EntityFolder folder, IMAPFolder ifolder, EntityMessage message, DB db) throws MessagingException, IOException {
+        // Download message text
+        if (message.content)
+            return;
+
+        Message imessage = ifolder.getMessageByUID(message.uid);
+        if (imessage == null)
+            throw new MessageRemovedException();
+
+        // The body structure is used to fetch the text parts only
+        MessageHelper helper = new MessageHelper((MimeMessage) imessage);
+        message.write(this, helper.getHtml());
+        message.content = true;
+        db.message().setMessageContent(message.id, true);
+        Log.i(Helper.TAG, folder.name + " downloaded text id=" + message.id + " uid=" + message.uid);
+    }
+
     private void synchronizeFolders(EntityAccount account, IMAPStore istore, ServiceState state) throws MessagingException {
         DB db = DB.getInstance(this);
         try {
@@ -1191,8 +1755,12 @@ public class ServiceSynchronize extends LifecycleService {
             }
 
             Log.i(Helper.TAG, "Delete local folder=" + names.size());
-            for (String name : names)
+            for (String name : names) {
+                EntityFolder folder = db.folder().getFolderByName(account.id, name);
+                if (folder != null)
+                    removeLock(folder.id);
                 db.folder().deleteFolder(account.id, name);
+            }
 
             db.setTransactionSuccessful();
         } finally {
@@ -1201,7 +1769,7 @@ public class ServiceSynchronize extends LifecycleService {
         }
     }
 
-    private void synchronizeMessages(EntityAccount account, EntityFolder folder, IMAPFolder ifolder, ServiceState state) throws MessagingException, IOException {
+    private void synchronizeMessages(EntityAccount account, final EntityFolder folder, final IMAPFolder ifolder, ServiceState state) throws MessagingException, IOException {
         DB db = DB.getInstance(this);
         try {
             Log.v(Helper.TAG, folder.name + " start sync after=" + folder.after);
@@ -1226,212 +1794,781 @@ public class ServiceSynchronize extends LifecycleService {
             int old = db.message().deleteMessagesBefore(folder.id, ago);
             Log.i(Helper.TAG, folder.name + " local old=" + old);
 
-            // Get list of local uids
-            List<Long> uids = db.message().getUids(folder.id, ago);
-            Log.i(Helper.TAG, folder.name + " local count=" + uids.size());
-
-            // Reduce list of local uids
-            long search = SystemClock.elapsedRealtime();
-            Message[] imessages = ifolder.search(new ReceivedDateTerm(ComparisonTerm.GE, new Date(ago)));
-            Log.i(Helper.TAG, folder.name + " remote count=" + imessages.length +
-                    " search=" + (SystemClock.elapsedRealtime() - search) + " ms");
-
-            FetchProfile fp = new FetchProfile();
-            fp.add(UIDFolder.FetchProfileItem.UID);
-            fp.add(IMAPFolder.FetchProfileItem.FLAGS);
-            ifolder.fetch(imessages, fp);
+            // Check if the UIDs are still valid
+            long uid_validity = ifolder.getUIDValidity();
+            if (folder.uid_validity != null && folder.uid_validity != uid_validity) {
+                int invalid = db.message().deleteRemoteMessages(folder.id);
+                Log.w(Helper.TAG, folder.name + " uidvalidity changed" +
+                        " from=" + folder.uid_validity + " to=" + uid_validity + " deleted=" + invalid);
+                folder.highest_modseq = null;
+            }
 
-            long fetch = SystemClock.elapsedRealtime();
-            Log.i(Helper.TAG, folder.name + " remote fetched=" + (SystemClock.elapsedRealtime() - fetch) + " ms");
+            // Check what changed since the previous synchronization
+            IMAPStore istore = (IMAPStore) ifolder.getStore();
+            boolean qresync = istore.hasCapability("QRESYNC");
+            Long modseq = getHighestModSeq(istore, ifolder);
+            boolean incremental = (modseq != null &&
+                    folder.highest_modseq != null &&
+                    folder.uid_validity != null && folder.uid_validity == uid_validity);
+            Log.i(Helper.TAG, folder.name + " uidvalidity=" + uid_validity +
+                    " modseq=" + folder.highest_modseq + "/" + modseq +
+                    " incremental=" + incremental + " qresync=" + qresync);
+
+            // Get local uids
+            UidSet local = getLocalUids(db, folder.id, ago);
+            Log.i(Helper.TAG, folder.name + " local " + local);
+
+            Message[] imessages;
+            if (incremental && qresync)
+                imessages = new Message[0]; // Deleted messages were reported as vanished when opening the folder
+            else {
+                // Get remote uids
+                long search = SystemClock.elapsedRealtime();
+                UidSet remote = getRemoteUids(ifolder, ago);
+                Log.i(Helper.TAG, folder.name + " remote " + remote +
+                        " search=" + (SystemClock.elapsedRealtime() - search) + " ms");
 
-            for (Message imessage : imessages) {
                 if (!state.running)
                     return;
 
-                try {
-                    uids.remove(ifolder.getUID(imessage));
-                } catch (MessageRemovedException ex) {
-                    Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
-                } catch (Throwable ex) {
-                    Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
-                    reportError(account.name, folder.name, ex);
-
-                    db.folder().setFolderError(folder.id, Helper.formatThrowable(ex));
+                // Delete local messages not at remote
+                long[] deleted = local.minus(remote);
+                Log.i(Helper.TAG, folder.name + " delete=" + deleted.length);
+                int count = deleteMessages(this, folder, deleted);
+                Log.i(Helper.TAG, folder.name + " deleted local=" + count);
+                if (count > 0)
+                    EntityAttachment.purge(this);
+
+                // Flags will be fetched for changed messages only
+                if (incremental)
+                    imessages = new Message[0];
+                else {
+                    long[] added = remote.minus(local);
+                    Log.i(Helper.TAG, folder.name + " new=" + added.length);
+                    long fetch = SystemClock.elapsedRealtime();
+                    imessages = getMessagesByUID(ifolder, added);
+
+                    // Only the flags of known messages are needed
+                    Message[] iknown = getMessagesByUID(ifolder, remote.minus(new UidSet(added)));
+                    GroupWriter flags = new GroupWriter(folder);
+                    flags.add(getFlags(folder, ifolder, iknown));
+                    flags.flush();
+                    Log.i(Helper.TAG, folder.name + " remote fetched=" + (SystemClock.elapsedRealtime() - fetch) + " ms" +
+                            " flags " + flags);
                 }
             }
 
-            // Delete local messages not at remote
-            Log.i(Helper.TAG, folder.name + " delete=" + uids.size());
-            for (Long uid : uids) {
-                int count = db.message().deleteMessage(folder.id, uid);
-                Log.i(Helper.TAG, folder.name + " delete local uid=" + uid + " count=" + count);
+            if (incremental) {
+                // Get new messages and messages with changed flags
+                if (modseq.equals(folder.highest_modseq))
+                    imessages = new Message[0];
+                else
+                    imessages = ifolder.getMessagesByUIDChangedSince(1, UIDFolder.LASTUID, folder.highest_modseq);
+                Log.i(Helper.TAG, folder.name + " changed=" + imessages.length);
+
+                // New messages outside the synchronization window should be skipped
+                Set<Message> unknown = new HashSet<>(); // by identity
+                for (Message imessage : imessages)
+                    if (!local.contains(ifolder.getUID(imessage)))
+                        unknown.add(imessage);
+
+                if (unknown.size() > 0) {
+                    FetchProfile fp = new FetchProfile();
+                    fp.add(FetchProfile.Item.ENVELOPE);
+                    ifolder.fetch(unknown.toArray(new Message[0]), fp);
+
+                    List<Message> changed = new ArrayList<>();
+                    for (Message imessage : imessages)
+                        if (!unknown.contains(imessage) ||
+                                imessage.getReceivedDate() == null ||
+                                imessage.getReceivedDate().getTime() >= ago)
+                            changed.add(imessage);
+                    imessages = changed.toArray(new Message[0]);
+                }
             }
 
             // Add/update local messages
-            int added = 0;
-            int updated = 0;
-            int unchanged = 0;
-            Log.i(Helper.TAG, folder.name + " add=" + imessages.length);
-            for (int i = imessages.length - 1; i >= 0; i--)
-                try {
-                    int status = synchronizeMessage(this, folder, ifolder, (IMAPMessage) imessages[i], false);
-                    if (status > 0)
-                        added++;
-                    else if (status < 0)
-                        updated++;
-                    else
-                        unchanged++;
-                } catch (ParseException ex) {
-                    Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
-                    reportError(account.name, folder.name, ex);
-                } catch (MessageRemovedException ex) {
-                    Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+            int batch = PreferenceManager.getDefaultSharedPreferences(this).getInt("sync_batch", DEFAULT_SYNC_BATCH);
+            Log.i(Helper.TAG, folder.name + " add=" + imessages.length + " batch=" + batch);
+            GroupWriter writer = new GroupWriter(folder);
+            UidSet stored = getStoredUids(db, folder, ifolder, imessages); // once for all batches
+            List<Throwable> skipped = new ArrayList<>();
+            List<Future<ParsedMessage>> pending = null;
+            for (int i = imessages.length - 1; i >= 0; i -= batch) {
+                if (!state.running) {
+                    writer.flush();
+                    return;
                 }
+
+                // Newest messages first
+                Message[] ibatch = Arrays.copyOfRange(imessages, Math.max(0, i - batch + 1), i + 1);
+                fetchMessages(this, folder, ifolder, ibatch, false, stored);
+
+                // Parse this batch while storing the previous batch
+                // Only this thread uses the folder connection, the parser threads work on copies
+                List<Future<ParsedMessage>> parsing = new ArrayList<>();
+                for (int j = ibatch.length - 1; j >= 0; j--) {
+                    final ParsedMessage read;
+                    try {
+                        read = readMessage(this, folder, ifolder, (IMAPMessage) ibatch[j], false, stored);
+                    } catch (MessagingException ex) {
+                        skip(account, folder, ex, skipped);
+                        continue;
+                    }
+                    if (read == null)
+                        continue;
+
+                    parsing.add(parser.submit(new Callable<ParsedMessage>() {
+                        @Override
+                        public ParsedMessage call() throws Exception {
+                            return parseMessage(ServiceSynchronize.this, read);
+                        }
+                    }));
+                }
+
+                if (pending != null)
+                    writer.add(getParsed(account, folder, pending, skipped));
+                pending = parsing;
+            }
+            if (pending != null)
+                writer.add(getParsed(account, folder, pending, skipped));
+            writer.flush();
             EntityOperation.process(this); // download small attachments
 
-            Log.w(Helper.TAG, folder.name + " statistics added=" + added + " updated=" + updated + " unchanged=" + unchanged);
+            // Index messages stored before there was a search index
+            SearchIndex.index(this, folder.id);
+
+            // Download the texts of the latest messages within budget
+            if (!folder.download) {
+                int budget = PreferenceManager.getDefaultSharedPreferences(this).getInt("download_budget", DEFAULT_DOWNLOAD_BUDGET);
+                int queued = 0;
+                for (EntityMessage message : db.message().getMessagesWithoutContent(folder.id)) {
+                    if (message.size == null || message.size > budget)
+                        continue;
+                    budget -= message.size;
+                    EntityOperation.prefetch(db, message, EntityOperation.BODY);
+                    queued++;
+                }
+                Log.i(Helper.TAG, folder.name + " queued texts=" + queued + " budget left=" + budget);
+                EntityOperation.process(this);
+            }
+
+            // Remember where to resume from
+            // Skipped messages would not be reported as changed again, so resume from the previous point then
+            folder.uid_validity = uid_validity;
+            if (skipped.size() == 0)
+                folder.highest_modseq = modseq;
+            else
+                Log.w(Helper.TAG, folder.name + " skipped=" + skipped.size() + " modseq=" + folder.highest_modseq);
+            db.folder().setFolderResync(folder.id, folder.uid_validity, folder.highest_modseq);
+
+            Log.w(Helper.TAG, folder.name + " statistics " + writer);
         } finally {
             Log.v(Helper.TAG, folder.name + " end sync");
             db.folder().setFolderState(folder.id, ifolder.isOpen() ? "connected" : "disconnected");
         }
     }
 
-    static int synchronizeMessage(Context context, EntityFolder folder, IMAPFolder ifolder, IMAPMessage imessage, boolean found) throws MessagingException, IOException {
-        long uid;
-        try {
-            FetchProfile fp = new FetchProfile();
-            fp.add(UIDFolder.FetchProfileItem.UID);
-            fp.add(IMAPFolder.FetchProfileItem.FLAGS);
-            ifolder.fetch(new Message[]{imessage}, fp);
-
-            uid = ifolder.getUID(imessage);
-            //Log.v(Helper.TAG, folder.name + " start sync uid=" + uid);
-
-            if (imessage.isExpunged()) {
-                Log.i(Helper.TAG, folder.name + " expunged uid=" + uid);
-                imessage.invalidateHeaders();
-                return 0;
-            }
-            if (imessage.isSet(Flags.Flag.DELETED)) {
-                Log.i(Helper.TAG, folder.name + " deleted uid=" + uid);
-                imessage.invalidateHeaders();
-                return 0;
+    // Messages expunged in the meantime are left out
+    private static Message[] getMessagesByUID(IMAPFolder ifolder, long[] uids) throws MessagingException {
+        Message[] imessages = ifolder.getMessagesByUID(uids);
+        List<Message> result = new ArrayList<>(imessages.length);
+        for (Message imessage : imessages)
+            if (imessage != null)
+                result.add(imessage);
+        return result.toArray(new Message[0]);
+    }
+
+    // Fetches the flags of messages which are stored already with one command
+    private static List<ParsedMessage> getFlags(EntityFolder folder, IMAPFolder ifolder, Message[] imessages) throws MessagingException {
+        FetchProfile fp = new FetchProfile();
+        fp.add(UIDFolder.FetchProfileItem.UID);
+        fp.add(IMAPFolder.FetchProfileItem.FLAGS);
+        ifolder.fetch(imessages, fp);
+
+        List<ParsedMessage> result = new ArrayList<>(imessages.length);
+        for (Message imessage : imessages)
+            try {
+                if (imessage.isExpunged())
+                    continue;
+                ParsedMessage parsed = new ParsedMessage();
+                parsed.uid = ifolder.getUID(imessage);
+                parsed.seen = imessage.isSet(Flags.Flag.SEEN);
+                result.add(parsed);
+            } catch (MessageRemovedException ex) {
+                Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
             }
+        return result;
+    }
 
-            MessageHelper helper = new MessageHelper(imessage);
-            boolean seen = helper.getSeen();
+    private static UidSet getLocalUids(DB db, long folder, long received) {
+        return getUids(db, "SELECT uid FROM message" +
+                " WHERE folder = ?" +
+                " AND received >= ?" +
+                " AND NOT uid IS NULL" +
+                " AND NOT ui_found" /* keep found messages */, new Object[]{folder, received});
+    }
 
-            DB db = DB.getInstance(context);
+    // Stored uids in the uid range of the messages, including found messages and messages outside the window
+    private static UidSet getStoredUids(DB db, EntityFolder folder, IMAPFolder ifolder, Message[] imessages) throws MessagingException {
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (Message imessage : imessages)
             try {
-                int result = 0;
+                long uid = ifolder.getUID(imessage);
+                first = Math.min(first, uid);
+                last = Math.max(last, uid);
+            } catch (MessageRemovedException ex) {
+                Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+            }
+        return getUids(db, "SELECT uid FROM message" +
+                " WHERE folder = ?" +
+                " AND uid BETWEEN ? AND ?", new Object[]{folder.id, first, last});
+    }
 
-                db.beginTransaction();
+    private static UidSet getUids(DB db, String query, Object[] args) {
+        Cursor cursor = null;
+        try {
+            cursor = db.query(query, args);
+            long[] uids = new long[cursor.getCount()];
+            int i = 0;
+            while (cursor.moveToNext())
+                uids[i++] = cursor.getLong(0);
+            return new UidSet(uids);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+
+    private static UidSet getRemoteUids(IMAPFolder ifolder, long received) throws MessagingException {
+        IMAPStore istore = (IMAPStore) ifolder.getStore();
+        final boolean esearch = istore.hasCapability("ESEARCH");
 
-                // Find message by uid (fast, no headers required)
-                EntityMessage message = db.message().getMessageByUid(folder.id, uid);
-
-                // Find message by Message-ID (slow, headers required)
-                // - messages in inbox have same id as message sent to self
-                // - messages in archive have same id as original
-                if (message == null) {
-                    // Will fetch headers within database transaction
-                    String msgid = helper.getMessageID();
-                    for (EntityMessage dup : db.message().getMessageByMsgId(folder.account, msgid)) {
-                        EntityFolder dfolder = db.folder().getFolder(dup.folder);
-                        boolean outbox = EntityFolder.OUTBOX.equals(dfolder.type);
-                        Log.i(Helper.TAG, folder.name + " found as id=" + dup.id +
-                                " folder=" + dfolder.type + ":" + dup.folder + "/" + folder.type + ":" + folder.id);
-
-                        if (dup.folder.equals(folder.id) || outbox) {
-                            Log.i(Helper.TAG, folder.name + " found as id=" + dup.id + " uid=" + dup.uid + " msgid=" + msgid);
-                            dup.folder = folder.id;
-                            dup.uid = uid;
-                            if (TextUtils.isEmpty(dup.thread)) // outbox: only now the uid is known
-                                dup.thread = helper.getThreadId(uid);
-                            db.message().updateMessage(dup);
-                            message = dup;
-                            result = -1;
+        // Same as a received date search, but returning UIDs, optionally as ranges
+        SimpleDateFormat df = new SimpleDateFormat("d-MMM-yyyy", Locale.US);
+        final String command = "UID SEARCH" + (esearch ? " RETURN (ALL)" : "") + " SINCE " + df.format(new Date(received));
+
+        return (UidSet) ifolder.doCommand(new IMAPFolder.ProtocolCommand() {
+            @Override
+            public Object doCommand(IMAPProtocol p) throws ProtocolException {
+                Response[] responses = p.command(command, null);
+
+                List<long[]> parts = new ArrayList<>();
+                int total = 0;
+                for (Response response : responses) {
+                    if (!(response instanceof IMAPResponse))
+                        continue;
+                    IMAPResponse ir = (IMAPResponse) response;
+
+                    if (ir.keyEquals("SEARCH")) {
+                        // * SEARCH 1 2 3
+                        long[] uids = new long[16];
+                        int count = 0;
+                        long uid;
+                        while ((uid = ir.readLong()) != -1) {
+                            if (count == uids.length)
+                                uids = Arrays.copyOf(uids, count * 2);
+                            uids[count++] = uid;
                         }
+                        parts.add(Arrays.copyOf(uids, count));
+                        total += count;
+
+                    } else if (ir.keyEquals("ESEARCH")) {
+                        // * ESEARCH (TAG "A1") UID ALL 1:3,5
+                        String[] tokens = ir.getRest().trim().split("\\s+");
+                        for (int i = 0; i < tokens.length - 1; i++)
+                            if ("ALL".equalsIgnoreCase(tokens[i])) {
+                                long[] uids = UIDSet.toArray(UIDSet.parseUIDSets(tokens[i + 1]));
+                                if (uids != null) {
+                                    parts.add(uids);
+                                    total += uids.length;
+                                }
+                            }
                     }
                 }
 
-                if (message != null) {
-                    if (message.seen != seen || message.seen != message.ui_seen) {
-                        message.seen = seen;
-                        message.ui_seen = seen;
-                        db.message().updateMessage(message);
-                        Log.i(Helper.TAG, folder.name + " updated id=" + message.id + " uid=" + message.uid + " seen=" + seen);
-                        result = -1;
-                    }
+                p.notifyResponseHandlers(responses);
+                p.handleResult(responses[responses.length - 1]);
+
+                long[] uids = new long[total];
+                int offset = 0;
+                for (long[] part : parts) {
+                    System.arraycopy(part, 0, uids, offset, part.length);
+                    offset += part.length;
+                }
+                return new UidSet(uids);
+            }
+        });
+    }
+
+    // Messages which could not be parsed are added to skipped
+    private List<ParsedMessage> getParsed(EntityAccount account, EntityFolder folder, List<Future<ParsedMessage>> futures, List<Throwable> skipped) throws MessagingException, IOException {
+        List<ParsedMessage> parsed = new ArrayList<>();
+        for (Future<ParsedMessage> future : futures)
+            try {
+                ParsedMessage message = future.get();
+                if (message != null)
+                    parsed.add(message);
+            } catch (InterruptedException ex) {
+                Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                skipped.add(ex);
+            } catch (ExecutionException ex) {
+                skip(account, folder, ex.getCause(), skipped);
+            }
+        return parsed;
+    }
+
+    // Messages which can't be parsed or were removed are skipped, other errors are thrown
+    private void skip(EntityAccount account, EntityFolder folder, Throwable ex, List<Throwable> skipped) throws MessagingException, IOException {
+        if (ex instanceof ParseException) {
+            Log.e(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+            reportError(account.name, folder.name, ex);
+            skipped.add(ex);
+        } else if (ex instanceof MessageRemovedException) {
+            Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+            skipped.add(ex);
+        } else if (ex instanceof MessagingException)
+            throw (MessagingException) ex;
+        else if (ex instanceof IOException)
+            throw (IOException) ex;
+        else
+            throw new RuntimeException(ex);
+    }
+
+    // Downloads attachments concurrently, each download on a folder connection of its own
+    // The number of downloads is part of the connection budget of the account
+    private class Downloader {
+        private EntityAccount account;
+        private IMAPStore istore;
+        private ExecutorService executor;
+        private final List<Long> active = new ArrayList<>(); // operation ids
+
+        Downloader(EntityAccount account, IMAPStore istore, int connections) {
+            this.account = account;
+            this.istore = istore;
+            this.executor = Executors.newFixedThreadPool(connections, Helper.backgroundThreadFactory);
+        }
+
+        void download(final EntityFolder folder, final EntityOperation op) {
+            synchronized (active) {
+                if (active.contains(op.id)) {
+                    Log.i(Helper.TAG, folder.name + " downloading op=" + op.id);
+                    return;
                 }
+                active.add(op.id);
+            }
 
-                if (message == null) {
-                    // Will fetch message within database transaction
-                    FetchProfile fp1 = new FetchProfile();
-                    fp1.add(FetchProfile.Item.ENVELOPE);
-                    fp1.add(FetchProfile.Item.CONTENT_INFO);
-                    fp1.add(IMAPFolder.FetchProfileItem.HEADERS);
-                    fp1.add(IMAPFolder.FetchProfileItem.MESSAGE);
-                    ifolder.fetch(new Message[]{imessage}, fp1);
-
-                    message = new EntityMessage();
-                    message.account = folder.account;
-                    message.folder = folder.id;
-                    message.uid = uid;
-
-                    if (!EntityFolder.ARCHIVE.equals(folder.type)) {
-                        message.msgid = helper.getMessageID();
-                        if (TextUtils.isEmpty(message.msgid))
-                            Log.w(Helper.TAG, "No Message-ID id=" + message.id + " uid=" + message.uid);
-                    }
+            Log.i(Helper.TAG, folder.name + " queue download op=" + op.id + " msg=" + op.message + " sequence=" + op.sequence);
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    DB db = DB.getInstance(ServiceSynchronize.this);
+                    IMAPFolder ifolder = null;
+                    try {
+                        EntityMessage message = db.message().getMessage(op.message);
+                        if (message == null || message.uid == null)
+                            throw new MessageRemovedException();
+
+                        // Each download has its own folder connection
+                        ifolder = (IMAPFolder) istore.getFolder(folder.name);
+                        ifolder.open(Folder.READ_ONLY);
+
+                        doAttachment(folder, op, ifolder, message, db);
+
+                        db.operation().deleteOperation(op.id);
+                        Log.i(Helper.TAG, folder.name + " op=" + op.name + " priority=" + op.priority +
+                                " attempts=" + op.attempts + " latency=" + (new Date().getTime() - op.created) + " ms");
 
-                    message.references = TextUtils.join(" ", helper.getReferences());
-                    message.inreplyto = helper.getInReplyTo();
-                    message.thread = helper.getThreadId(uid);
-                    message.from = helper.getFrom();
-                    message.to = helper.getTo();
-                    message.cc = helper.getCc();
-                    message.bcc = helper.getBcc();
-                    message.reply = helper.getReply();
-                    message.subject = imessage.getSubject();
-                    message.received = imessage.getReceivedDate().getTime();
-                    message.sent = (imessage.getSentDate() == null ? null : imessage.getSentDate().getTime());
-                    message.seen = seen;
-                    message.ui_seen = seen;
-                    message.ui_hide = false;
-                    message.ui_found = found;
-
-                    message.id = db.message().insertMessage(message);
-                    message.write(context, helper.getHtml());
-                    Log.i(Helper.TAG, folder.name + " added id=" + message.id + " uid=" + message.uid);
-
-                    // Free memory
-                    imessage.invalidateHeaders();
-
-                    int sequence = 0;
-                    for (EntityAttachment attachment : helper.getAttachments()) {
-                        sequence++;
-                        Log.i(Helper.TAG, "attachment seq=" + sequence +
-                                " name=" + attachment.name + " type=" + attachment.type);
-                        attachment.message = message.id;
-                        attachment.sequence = sequence;
-                        attachment.id = db.attachment().insertAttachment(attachment);
-
-                        if (attachment.size != null && attachment.size < ATTACHMENT_AUTO_DOWNLOAD_SIZE)
-                            EntityOperation.queue(db, message, EntityOperation.ATTACHMENT, sequence);
+                        // Continue with the operations waiting for the download
+                        OperationDispatcher.dispatch(account.id, folder.id);
+                    } catch (Throwable ex) {
+                        Log.w(Helper.TAG, folder.name + " download " + ex + "\n" + Log.getStackTraceString(ex));
+                        db.message().setMessageError(op.message, Helper.formatThrowable(ex));
+
+                        if (ex instanceof MessageRemovedException ||
+                                ex instanceof FolderNotFoundException)
+                            db.operation().deleteOperation(op.id);
+                        else {
+                            // Retry later, the downloaded bytes are kept
+                            int attempts = op.attempts + 1;
+                            long delay = Math.min(OPERATION_RETRY_MAX, OPERATION_RETRY_START << Math.min(attempts - 1, 16));
+                            db.operation().setOperationRetry(op.id, attempts, new Date().getTime() + delay);
+                            scheduleOperations(folder, delay);
+                        }
+                    } finally {
+                        if (ifolder != null && ifolder.isOpen())
+                            try {
+                                ifolder.close(false);
+                            } catch (MessagingException ex) {
+                                Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+                            }
+
+                        synchronized (active) {
+                            active.remove(op.id);
+                        }
                     }
+                }
+            });
+        }
+
+        void stop() {
+            Log.i(Helper.TAG, account.name + " stop downloads");
+            executor.shutdownNow();
+        }
+    }
+
+    // Buffers parsed messages and stores them in groups, to reduce the number of commits and invalidations
+    private class GroupWriter {
+        private EntityFolder folder;
+        private int rows;
+        private long window;
+        private List<ParsedMessage> buffer = new ArrayList<>();
+        private int buffered = 0;
+        private long since = 0;
+
+        private long start = SystemClock.elapsedRealtime();
+        private int commits = 0;
+        private int added = 0;
+        private int updated = 0;
+        private int unchanged = 0;
+
+        GroupWriter(EntityFolder folder) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSynchronize.this);
+            this.folder = folder;
+            this.rows = prefs.getInt("group_rows", DEFAULT_GROUP_ROWS);
+            this.window = prefs.getInt("group_window", DEFAULT_GROUP_WINDOW);
+        }
+
+        void add(List<ParsedMessage> parsed) throws IOException {
+            if (buffer.size() == 0)
+                since = SystemClock.elapsedRealtime();
+
+            for (ParsedMessage message : parsed) {
+                buffer.add(message);
+                buffered += 1 + (message.attachments == null ? 0 : message.attachments.size());
+            }
+
+            if (buffered >= rows || SystemClock.elapsedRealtime() - since >= window)
+                flush();
+        }
+
+        void flush() throws IOException {
+            if (buffer.size() == 0)
+                return;
+
+            long begin = SystemClock.elapsedRealtime();
+            int[] result = storeMessages(ServiceSynchronize.this, folder, buffer);
+            commits++;
+            for (int status : result)
+                if (status > 0)
+                    added++;
+                else if (status < 0)
+                    updated++;
+                else
+                    unchanged++;
+            Log.i(Helper.TAG, folder.name + " stored messages=" + buffer.size() + " rows=" + buffered +
+                    " " + (SystemClock.elapsedRealtime() - begin) + " ms");
+
+            buffer.clear();
+            buffered = 0;
+        }
+
+        @Override
+        public String toString() {
+            long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+            int total = added + updated + unchanged;
+            return "added=" + added + " updated=" + updated + " unchanged=" + unchanged +
+                    " commits=" + commits + " rate=" + (total * 1000L / elapsed) + " msg/s";
+        }
+    }
+
+    // Returns the uids of the messages which are stored already, looked up once if not given
+    static UidSet fetchMessages(Context context, EntityFolder folder, IMAPFolder ifolder, Message[] imessages, boolean found, UidSet stored) throws MessagingException {
+        // Fetching data which is available already will not result in a server round-trip
+        long start = SystemClock.elapsedRealtime();
+
+        FetchProfile fp = new FetchProfile();
+        fp.add(UIDFolder.FetchProfileItem.UID);
+        fp.add(IMAPFolder.FetchProfileItem.FLAGS);
+        ifolder.fetch(imessages, fp);
+
+        if (stored == null)
+            stored = getStoredUids(DB.getInstance(context), folder, ifolder, imessages);
+
+        List<Message> added = new ArrayList<>();
+        for (Message imessage : imessages)
+            try {
+                if (!stored.contains(ifolder.getUID(imessage)))
+                    added.add(imessage);
+            } catch (MessageRemovedException ex) {
+                Log.w(Helper.TAG, folder.name + " " + ex + "\n" + Log.getStackTraceString(ex));
+            }
+
+        if (added.size() > 0)
+            ifolder.fetch(added.toArray(new Message[0]), getMessageProfile(folder, found));
+
+        Log.i(Helper.TAG, folder.name + " fetched=" + imessages.length + " added=" + added.size() +
+                " " + (SystemClock.elapsedRealtime() - start) + " ms");
+
+        return stored;
+    }
+
+    private static FetchProfile getMessageProfile(EntityFolder folder, boolean found) {
+        // Content info is the body structure, which is sufficient to list attachments
+        // The text of found messages is downloaded when the message is opened
+        FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.ENVELOPE);
+        fp.add(FetchProfile.Item.CONTENT_INFO);
+        fp.add(FetchProfile.Item.SIZE);
+        fp.add(IMAPFolder.FetchProfileItem.HEADERS);
+        if (folder.download && !found)
+            fp.add(IMAPFolder.FetchProfileItem.MESSAGE);
+        return fp;
+    }
+
+    static int synchronizeMessage(Context context, EntityFolder folder, IMAPFolder ifolder, IMAPMessage imessage, boolean found, UidSet stored) throws MessagingException, IOException {
+        ParsedMessage parsed = parseMessage(context, folder, ifolder, imessage, found, stored);
+        if (parsed == null)
+            return 0;
+        return storeMessages(context, folder, Arrays.asList(parsed))[0];
+    }
+
+    // Fetch and parse stage: network access and MIME parsing, outside of any database transaction
+    static ParsedMessage parseMessage(Context context, EntityFolder folder, IMAPFolder ifolder, IMAPMessage imessage, boolean found, UidSet stored) throws MessagingException, IOException {
+        ParsedMessage parsed = readMessage(context, folder, ifolder, imessage, found, stored);
+        return (parsed == null ? null : parseMessage(context, parsed));
+    }
+
+    // Fetch stage: everything which needs the server, on the thread using the folder connection
+    static ParsedMessage readMessage(Context context, EntityFolder folder, IMAPFolder ifolder, IMAPMessage imessage, boolean found, UidSet stored) throws MessagingException, IOException {
+        FetchProfile fp = new FetchProfile();
+        fp.add(UIDFolder.FetchProfileItem.UID);
+        fp.add(IMAPFolder.FetchProfileItem.FLAGS);
+        ifolder.fetch(new Message[]{imessage}, fp);
+
+        long uid = ifolder.getUID(imessage);
+
+        if (imessage.isExpunged()) {
+            Log.i(Helper.TAG, folder.name + " expunged uid=" + uid);
+            imessage.invalidateHeaders();
+            return null;
+        }
+        if (imessage.isSet(Flags.Flag.DELETED)) {
+            Log.i(Helper.TAG, folder.name + " deleted uid=" + uid);
+            imessage.invalidateHeaders();
+            return null;
+        }
+
+        MessageHelper helper = new MessageHelper(imessage);
 
-                    result = 1;
+        ParsedMessage parsed = new ParsedMessage();
+        parsed.uid = uid;
+        parsed.seen = helper.getSeen();
+
+        // Stored messages were looked up by uid when fetching (fast, no headers required)
+        if (stored.contains(uid))
+            return parsed;
+
+        // Will fetch message, unless fetched in a batch before
+        ifolder.fetch(new Message[]{imessage}, getMessageProfile(folder, found));
+
+        parsed.msgid = helper.getMessageID();
+        parsed.thread = helper.getThreadId(uid);
+
+        EntityMessage message = new EntityMessage();
+        message.account = folder.account;
+        message.folder = folder.id;
+        message.uid = uid;
+
+        if (!EntityFolder.ARCHIVE.equals(folder.type)) {
+            message.msgid = parsed.msgid;
+            if (TextUtils.isEmpty(message.msgid))
+                Log.w(Helper.TAG, "No Message-ID uid=" + message.uid);
+        }
+
+        message.references = TextUtils.join(" ", helper.getReferences());
+        message.inreplyto = helper.getInReplyTo();
+        message.thread = parsed.thread;
+        message.from = helper.getFrom();
+        message.to = helper.getTo();
+        message.cc = helper.getCc();
+        message.bcc = helper.getBcc();
+        message.reply = helper.getReply();
+        message.subject = imessage.getSubject();
+        message.received = imessage.getReceivedDate().getTime();
+        message.sent = (imessage.getSentDate() == null ? null : imessage.getSentDate().getTime());
+        message.size = (imessage.getSize() < 0 ? null : imessage.getSize());
+        message.seen = parsed.seen;
+        message.ui_seen = parsed.seen;
+        message.ui_hide = false;
+        message.ui_found = found;
+        message.content = false; // set when the text is stored
+
+        parsed.message = message;
+
+        // The complete message was fetched for downloading, so copying it doesn't need the server
+        // Otherwise the attachments are listed from the body structure
+        if (folder.download && !found)
+            parsed.source = new MimeMessage(imessage);
+        else
+            parsed.attachments = helper.getAttachments();
+
+        // Free memory
+        imessage.invalidateHeaders();
+
+        return parsed;
+    }
+
+    // Parse stage: works on the fetched copy only, so it can run on any thread
+    static ParsedMessage parseMessage(Context context, ParsedMessage parsed) throws MessagingException, IOException {
+        if (parsed.source != null) {
+            MessageHelper helper = new MessageHelper(parsed.source);
+            parsed.html = helper.getHtml();
+            parsed.attachments = helper.getAttachments();
+            parsed.source = null; // free memory
+
+            // Prepare the text for display and for searching on the parser thread
+            if (parsed.html != null) {
+                parsed.version = HtmlHelper.getVersion(context);
+                parsed.display = HtmlHelper.sanitize(context, parsed.html, false);
+                parsed.text = SearchIndex.getText(parsed.html);
+            }
+        }
+        return parsed;
+    }
+
+    // Write stage: the texts are appended to the body store first,
+    // then the messages, the text locations and the search index are written in one short transaction
+    static int[] storeMessages(Context context, EntityFolder folder, List<ParsedMessage> parsed) throws IOException {
+        int[] result = new int[parsed.size()];
+
+        // Texts of messages which turn out to be stored already are not recorded and will be compacted
+        EntityBody[] raw = new EntityBody[parsed.size()];
+        EntityBody[] display = new EntityBody[parsed.size()];
+        try {
+            for (int i = 0; i < parsed.size(); i++) {
+                ParsedMessage p = parsed.get(i);
+                if (p.html != null) {
+                    raw[i] = BodyStore.stage(context, BodyStore.RAW, null, p.html);
+                    display[i] = BodyStore.stage(context, BodyStore.DISPLAY, p.version, p.display);
+                    p.message.content = true;
+                }
+            }
+
+            DB db = DB.getInstance(context);
+            try {
+                db.beginTransaction();
+
+                for (int i = 0; i < parsed.size(); i++) {
+                    ParsedMessage p = parsed.get(i);
+                    result[i] = storeMessage(db, folder, p);
+                    if (result[i] > 0) {
+                        if (raw[i] != null) {
+                            BodyStore.record(context, p.message.id, raw[i]);
+                            BodyStore.record(context, p.message.id, display[i]);
+                        }
+                        SearchIndex.insert(context, p.message, p.text == null ? "" : p.text);
+                    }
                 }
 
                 db.setTransactionSuccessful();
-                return result;
             } finally {
                 db.endTransaction();
             }
         } finally {
-            //Log.v(Helper.TAG, folder.name + " end sync uid=" + uid);
+            for (int i = 0; i < parsed.size(); i++) {
+                if (raw[i] != null)
+                    BodyStore.release(context, raw[i]);
+                if (display[i] != null)
+                    BodyStore.release(context, display[i]);
+            }
+        }
+
+        return result;
+    }
+
+    private static int storeMessage(DB db, EntityFolder folder, ParsedMessage parsed) {
+        int result = 0;
+
+        // The message could have been added in the meantime
+        EntityMessage message = db.message().getMessageByUid(folder.id, parsed.uid);
+
+        // Find message by Message-ID
+        // - messages in inbox have same id as message sent to self
+        // - messages in archive have same id as original
+        if (message == null && parsed.message != null) {
+            for (EntityMessage dup : db.message().getMessageByMsgId(folder.account, parsed.msgid)) {
+                EntityFolder dfolder = db.folder().getFolder(dup.folder);
+                boolean outbox = EntityFolder.OUTBOX.equals(dfolder.type);
+                Log.i(Helper.TAG, folder.name + " found as id=" + dup.id +
+                        " folder=" + dfolder.type + ":" + dup.folder + "/" + folder.type + ":" + folder.id);
+
+                if (dup.folder.equals(folder.id) || outbox) {
+                    Log.i(Helper.TAG, folder.name + " found as id=" + dup.id + " uid=" + dup.uid + " msgid=" + parsed.msgid);
+                    dup.folder = folder.id;
+                    dup.uid = parsed.uid;
+                    if (TextUtils.isEmpty(dup.thread)) // outbox: only now the uid is known
+                        dup.thread = parsed.thread;
+                    db.message().updateMessage(dup);
+                    message = dup;
+                    result = -1;
+                }
+            }
+        }
+
+        if (message != null) {
+            parsed.id = message.id;
+            if (message.seen != parsed.seen || message.seen != message.ui_seen) {
+                message.seen = parsed.seen;
+                message.ui_seen = parsed.seen;
+                db.message().updateMessage(message);
+                Log.i(Helper.TAG, folder.name + " updated id=" + message.id + " uid=" + message.uid + " seen=" + parsed.seen);
+                result = -1;
+            }
+            return result;
+        }
+
+        if (parsed.message == null) {
+            // Known when parsed, but removed in the meantime
+            Log.w(Helper.TAG, folder.name + " gone uid=" + parsed.uid);
+            return 0;
         }
+
+        message = parsed.message;
+        message.id = db.message().insertMessage(message);
+        parsed.id = message.id;
+        Log.i(Helper.TAG, folder.name + " added id=" + message.id + " uid=" + message.uid);
+
+        int sequence = 0;
+        for (EntityAttachment attachment : parsed.attachments) {
+            sequence++;
+            Log.i(Helper.TAG, "attachment seq=" + sequence +
+                    " name=" + attachment.name + " type=" + attachment.type);
+            attachment.message = message.id;
+            attachment.sequence = sequence;
+            attachment.id = db.attachment().insertAttachment(attachment);
+
+            if (attachment.size != null && attachment.size < ATTACHMENT_AUTO_DOWNLOAD_SIZE)
+                EntityOperation.prefetch(db, message, EntityOperation.ATTACHMENT, sequence);
+        }
+
+        return 1;
+    }
+
+    static class ParsedMessage {
+        long uid;
+        boolean seen;
+        String msgid;
+        String thread;
+        EntityMessage message; // null when the message is stored already
+        MimeMessage source; // complete message to parse, in memory
+        String html;
+        String display; // sanitized html
+        String version; // of the sanitized html
+        String text; // plain text for the search index
+        List<EntityAttachment> attachments;
+        Long id; // set when stored
     }
 
     private class ServiceManager extends ConnectivityManager.NetworkCallback {
@@ -1519,15 +2656,18 @@ public class ServiceSynchronize extends LifecycleService {
                         // Start monitoring outbox
                         IntentFilter f = new IntentFilter();
                         f.addAction(ACTION_SYNCHRONIZE_FOLDER);
-                        f.addAction(ACTION_PROCESS_OPERATIONS);
                         f.addDataType("account/outbox");
                         LocalBroadcastManager lbm = LocalBroadcastManager.getInstance(ServiceSynchronize.this);
                         lbm.registerReceiver(outboxReceiver, f);
+                        OperationDispatcher.register(null, new OperationDispatcher.Listener() {
+                            @Override
+                            public void onOperations(long folder) {
+                                outboxReceiver.onReceive(ServiceSynchronize.this, new Intent(ACTION_PROCESS_OPERATIONS));
+                            }
+                        });
                         db.folder().setFolderState(outbox.id, "connected");
 
-                        lbm.sendBroadcast(new Intent(ACTION_PROCESS_OPERATIONS)
-                                .setType("account/outbox")
-                                .putExtra("folder", outbox.id));
+                        OperationDispatcher.dispatch(null, outbox.id);
 
                         // Start monitoring accounts
                         for (final EntityAccount account : accounts) {
@@ -1555,7 +2695,9 @@ public class ServiceSynchronize extends LifecycleService {
                         threads.clear();
 
                         // Stop monitoring outbox
+                        OperationDispatcher.unregister(null);
                         lbm.unregisterReceiver(outboxReceiver);
+                        closeTransports(true);
                         Log.i(Helper.TAG, outbox.name + " unlisten operations");
                         db.folder().setFolderState(outbox.id, null);
 
@@ -1616,6 +2758,7 @@ public class ServiceSynchronize extends LifecycleService {
                     public void run() {
                         DB db = DB.getInstance(context);
                         try {
+                            OperationDispatcher.started(outbox.id);
                             Log.i(Helper.TAG, outbox.name + " start operations");
                             db.folder().setFolderState(outbox.id, "syncing");
                             processOperations(outbox, null, null, null);
@@ -21,8 +21,6 @@ package eu.faircode.email;
 
 public class TupleFolderEx extends EntityFolder {
     public String accountName;
-    public int messages;
-    public int unseen;
 
     @Override
     public boolean equals(Object obj) {
@@ -30,8 +28,8 @@ public class TupleFolderEx extends EntityFolder {
             TupleFolderEx other = (TupleFolderEx) obj;
             return (super.equals(obj) &&
                     (this.accountName == null ? other.accountName == null : accountName.equals(other.accountName)) &&
-                    this.messages == other.messages &&
-                    this.unseen == other.unseen);
+                    this.messages.equals(other.messages) &&
+                    this.unseen.equals(other.unseen));
         } else
             return false;
     }
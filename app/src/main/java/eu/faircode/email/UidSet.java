@@ -0,0 +1,75 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+import java.util.Arrays;
+
+// Sorted set of message UIDs backed by a primitive array
+// Differences are computed with a single merge pass, without boxing
+
+public class UidSet {
+    private long[] uids;
+
+    UidSet(long[] uids) {
+        long[] sorted = Arrays.copyOf(uids, uids.length);
+        Arrays.sort(sorted);
+
+        // Remove duplicates
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++)
+            if (count == 0 || sorted[count - 1] != sorted[i])
+                sorted[count++] = sorted[i];
+
+        this.uids = (count == sorted.length ? sorted : Arrays.copyOf(sorted, count));
+    }
+
+    boolean contains(long uid) {
+        return (Arrays.binarySearch(uids, uid) >= 0);
+    }
+
+    long[] toArray() {
+        return Arrays.copyOf(uids, uids.length);
+    }
+
+    // UIDs in this set which are not in the other set
+    long[] minus(UidSet other) {
+        long[] result = new long[uids.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < uids.length)
+            if (j >= other.uids.length || uids[i] < other.uids[j])
+                result[count++] = uids[i++];
+            else if (uids[i] > other.uids[j])
+                j++;
+            else {
+                i++;
+                j++;
+            }
+        return Arrays.copyOf(result, count);
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + uids.length +
+                (uids.length == 0 ? "" : " range=" + uids[0] + ":" + uids[uids.length - 1]);
+    }
+}
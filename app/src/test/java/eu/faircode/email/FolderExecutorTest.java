@@ -0,0 +1,168 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Stress test of running the work of many folders on a few threads
+
+public class FolderExecutorTest {
+    private static final int THREADS = 3;
+    private static final int FOLDERS = 12; // half of them without a connection of their own
+    private static final int SUBMITTERS = 8;
+    private static final int TASKS = 2000; // per submitter
+
+    @Test(timeout = 60 * 1000L)
+    public void testStress() throws InterruptedException {
+        final FolderExecutor executor = new FolderExecutor(THREADS, Executors.defaultThreadFactory());
+
+        final AtomicInteger[] active = new AtomicInteger[FOLDERS];
+        final int[][] last = new int[FOLDERS][SUBMITTERS]; // guarded by the folder running one task at a time
+        for (int f = 0; f < FOLDERS; f++) {
+            active[f] = new AtomicInteger();
+            for (int s = 0; s < SUBMITTERS; s++)
+                last[f][s] = -1;
+        }
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger sharing = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+        final CountDownLatch done = new CountDownLatch(SUBMITTERS * TASKS);
+
+        List<Thread> submitters = new ArrayList<>();
+        for (int s = 0; s < SUBMITTERS; s++) {
+            final int submitter = s;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(submitter);
+                    for (int i = 0; i < TASKS; i++) {
+                        final int folder = random.nextInt(FOLDERS);
+                        final boolean connected = (folder % 2 == 0);
+                        final int sequence = i;
+                        executor.submit(folder, connected, new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    int r = running.incrementAndGet();
+                                    synchronized (maxRunning) {
+                                        maxRunning.set(Math.max(maxRunning.get(), r));
+                                    }
+                                    if (active[folder].incrementAndGet() != 1)
+                                        errors.add("Concurrent tasks folder=" + folder);
+                                    if (!connected && sharing.incrementAndGet() != 1)
+                                        errors.add("Concurrent shared folders folder=" + folder);
+
+                                    if (last[folder][submitter] >= sequence)
+                                        errors.add("Out of order folder=" + folder + " submitter=" + submitter);
+                                    last[folder][submitter] = sequence;
+
+                                    if (sequence % 100 == 0)
+                                        Thread.sleep(1);
+                                    else
+                                        Thread.yield();
+
+                                    if (!connected)
+                                        sharing.decrementAndGet();
+                                    active[folder].decrementAndGet();
+                                    running.decrementAndGet();
+                                } catch (InterruptedException ex) {
+                                    errors.add(ex.toString());
+                                } finally {
+                                    done.countDown();
+                                }
+                            }
+                        });
+                    }
+                }
+            });
+            t.start();
+            submitters.add(t);
+        }
+
+        for (Thread t : submitters)
+            t.join();
+        assertTrue("Not all tasks ran", done.await(50, TimeUnit.SECONDS));
+        executor.shutdownNow();
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertTrue("Threads=" + maxRunning.get(), maxRunning.get() <= THREADS);
+    }
+
+    @Test(timeout = 10 * 1000L)
+    public void testShutdown() throws InterruptedException {
+        FolderExecutor executor = new FolderExecutor(THREADS, Executors.defaultThreadFactory());
+
+        final CountDownLatch started = new CountDownLatch(2);
+        final AtomicInteger interrupted = new AtomicInteger();
+        final AtomicInteger ran = new AtomicInteger();
+        for (int folder = 0; folder < 2; folder++)
+            for (int i = 0; i < 10; i++)
+                executor.submit(folder, true, new Runnable() {
+                    @Override
+                    public void run() {
+                        ran.incrementAndGet();
+                        started.countDown();
+                        try {
+                            Thread.sleep(60 * 1000L);
+                        } catch (InterruptedException ex) {
+                            interrupted.incrementAndGet();
+                        }
+                    }
+                });
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        executor.shutdownNow();
+
+        // Running tasks are interrupted, waiting tasks never run
+        long until = System.currentTimeMillis() + 5000;
+        while (interrupted.get() < 2 && System.currentTimeMillis() < until)
+            Thread.sleep(10);
+        assertEquals(2, interrupted.get());
+        Thread.sleep(100);
+        assertEquals(2, ran.get());
+
+        try {
+            executor.submit(0, true, new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            fail("Submitted after shutdown");
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+}
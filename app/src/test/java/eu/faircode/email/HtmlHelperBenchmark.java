@@ -0,0 +1,95 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+
+import org.jsoup.Jsoup;
+import org.jsoup.safety.Cleaner;
+import org.jsoup.safety.Whitelist;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of preparing a message text for display without sanitizing it to plain text
+// parse is the lower bound, cleaner is cleaning by copying the document with the jsoup cleaner
+// Run the main method, the results are per message text
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HtmlHelperBenchmark {
+    private String html;
+
+    @Setup
+    public void setup() {
+        // A newsletter like text with tables, styles, images and links
+        StringBuilder sb = new StringBuilder();
+        sb.append("<html><head><style>td { color: red; }</style></head><body>");
+        sb.append("<table width=\"600\" border=\"0\" cellpadding=\"0\">");
+        for (int i = 0; i < 50; i++) {
+            sb.append("<tr><td style=\"padding: 8px\" class=\"item\">");
+            sb.append("<img src=\"https://example.com/images/").append(i).append(".png\" alt=\"Item\" width=\"64\">");
+            sb.append("<h3>Item ").append(i).append("</h3>");
+            sb.append("<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit, see https://example.com/items/")
+                    .append(i).append(" for details.</p>");
+            sb.append("<a href=\"https://example.com/buy/").append(i).append("\" onclick=\"track()\">Buy</a>");
+            sb.append("</td></tr>");
+        }
+        sb.append("</table><script>track();</script></body></html>");
+        html = sb.toString();
+    }
+
+    @Benchmark
+    public Object parse() {
+        return Jsoup.parse(html);
+    }
+
+    @Benchmark
+    public String clean() {
+        return HtmlHelper.clean(html);
+    }
+
+    @Benchmark
+    public String cleaner() {
+        return new Cleaner(Whitelist.relaxed()).clean(Jsoup.parse(html)).body().html();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(HtmlHelperBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,53 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class HtmlHelperTest {
+    @Test
+    public void testUnsafe() {
+        assertEquals("<div>Text <a>bad</a></div>",
+                HtmlHelper.clean("<div onclick=\"x()\"><script>alert(1)</script><style>p{}</style>" +
+                        "Text <a href=\"javascript:alert(1)\">bad</a></div>"));
+        assertEquals("<img alt=\"x\"><img src=\"https://example.com/a.png\"><img>",
+                HtmlHelper.clean("<img src=\"cid:1\" alt=\"x\"><img src=\"https://example.com/a.png\" onerror=\"x\">" +
+                        "<img src=\"/relative.png\">"));
+        assertEquals("redcenter", HtmlHelper.clean("<!-- comment --><font color=\"red\">red</font><center>center</center>"));
+    }
+
+    @Test
+    public void testLinks() {
+        assertEquals("see <a href=\"https://example.com/x?a=1&amp;b=2\">https://example.com/x?a=1&amp;b=2</a>.",
+                HtmlHelper.clean("see https://example.com/x?a=1&amp;b=2."));
+        assertEquals("<a href=\"mailto:a@example.com\" title=\"t\">http://example.com</a>",
+                HtmlHelper.clean("<a href=\"mailto:a@example.com\" title=\"t\" target=\"_blank\">http://example.com</a>"));
+    }
+
+    @Test
+    public void testRows() {
+        assertEquals("<table><tbody><tr><td colspan=\"2\">a</td></tr><br></tbody></table>",
+                HtmlHelper.clean("<table border=\"1\"><tr><td colspan=\"2\" bgcolor=\"red\">a</td></tr></table>"));
+    }
+}
@@ -0,0 +1,110 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Latency from queuing operations until the worker of the folder starts processing them,
+// and the cost of a wakeup which is coalesced with a pending one
+// The worker is a single thread executor, like the executor of an account
+// Run the main method
+
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OperationDispatcherBenchmark {
+    private static final long ACCOUNT = 1;
+    private static final long FOLDER = 2;
+    private static final long PENDING = 3; // folder of which the worker never starts
+
+    private ExecutorService worker;
+    private final AtomicLong started = new AtomicLong();
+
+    @Setup
+    public void setup() {
+        worker = Executors.newSingleThreadExecutor();
+        OperationDispatcher.register(ACCOUNT, new OperationDispatcher.Listener() {
+            @Override
+            public void onOperations(final long folder) {
+                if (folder == PENDING)
+                    return;
+                worker.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        OperationDispatcher.started(folder);
+                        started.incrementAndGet();
+                    }
+                });
+            }
+        });
+        OperationDispatcher.dispatch(ACCOUNT, PENDING);
+    }
+
+    @TearDown
+    public void tearDown() {
+        OperationDispatcher.unregister(ACCOUNT);
+        worker.shutdownNow();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long wakeup() {
+        long target = started.get() + 1;
+        OperationDispatcher.dispatch(ACCOUNT, FOLDER);
+        while (started.get() < target)
+            Thread.yield();
+        return target;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void coalesced() {
+        OperationDispatcher.dispatch(ACCOUNT, PENDING);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(OperationDispatcherBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
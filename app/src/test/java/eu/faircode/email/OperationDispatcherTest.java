@@ -0,0 +1,110 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OperationDispatcherTest {
+    private static final long ACCOUNT = 10;
+
+    @Test
+    public void testCoalesce() {
+        final AtomicInteger wakeups = new AtomicInteger();
+        OperationDispatcher.register(ACCOUNT, new OperationDispatcher.Listener() {
+            @Override
+            public void onOperations(long folder) {
+                wakeups.incrementAndGet();
+            }
+        });
+        try {
+            OperationDispatcher.dispatch(ACCOUNT, 1);
+            OperationDispatcher.dispatch(ACCOUNT, 1);
+            OperationDispatcher.dispatch(ACCOUNT, 2);
+            assertEquals(2, wakeups.get());
+
+            OperationDispatcher.started(1);
+            OperationDispatcher.dispatch(ACCOUNT, 1);
+            assertEquals(3, wakeups.get());
+        } finally {
+            OperationDispatcher.unregister(ACCOUNT);
+        }
+    }
+
+    @Test(timeout = 10 * 1000L)
+    public void testUnregister() throws InterruptedException {
+        // A worker which has unregistered is not woken up anymore
+        final CountDownLatch entered = new CountDownLatch(1);
+        final AtomicBoolean done = new AtomicBoolean();
+        OperationDispatcher.register(ACCOUNT, new OperationDispatcher.Listener() {
+            @Override
+            public void onOperations(long folder) {
+                entered.countDown();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ignored) {
+                }
+                done.set(true);
+            }
+        });
+
+        Thread queuing = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                OperationDispatcher.dispatch(ACCOUNT, 1);
+            }
+        });
+        queuing.start();
+
+        entered.await();
+        OperationDispatcher.unregister(ACCOUNT);
+        assertTrue(done.get());
+        queuing.join();
+    }
+
+    @Test
+    public void testRejected() {
+        // A worker which is stopping rejects wakeups, which should not fail queuing operations
+        final AtomicInteger wakeups = new AtomicInteger();
+        OperationDispatcher.register(ACCOUNT, new OperationDispatcher.Listener() {
+            @Override
+            public void onOperations(long folder) {
+                if (wakeups.incrementAndGet() == 1)
+                    throw new RejectedExecutionException();
+            }
+        });
+        try {
+            OperationDispatcher.dispatch(ACCOUNT, 1);
+            OperationDispatcher.dispatch(ACCOUNT, 1);
+            assertEquals(2, wakeups.get());
+        } finally {
+            OperationDispatcher.unregister(ACCOUNT);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Cost of finding the deleted and the new messages of a folder from the local and the remote uids
+// list is removing each remote uid from a boxed list of local uids, which is how it used to be done
+// Run the main method, the results are per synchronization
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UidSetBenchmark {
+    @Param({"1000", "10000"})
+    public int messages;
+
+    private long[] local;
+    private long[] remote;
+
+    @Setup
+    public void setup() {
+        // About one percent of the messages was deleted and one percent is new, in random order
+        Random random = new Random(0);
+        List<Long> l = new ArrayList<>();
+        List<Long> r = new ArrayList<>();
+        long uid = 1;
+        for (int i = 0; i < messages; i++) {
+            uid += 1 + random.nextInt(3);
+            if (random.nextInt(100) != 0)
+                r.add(uid);
+            l.add(uid);
+        }
+        for (int i = 0; i < messages / 100; i++)
+            r.add(++uid);
+        Collections.shuffle(r, random);
+
+        local = new long[l.size()];
+        for (int i = 0; i < local.length; i++)
+            local[i] = l.get(i);
+        remote = new long[r.size()];
+        for (int i = 0; i < remote.length; i++)
+            remote[i] = r.get(i);
+    }
+
+    @Benchmark
+    public Object list() {
+        List<Long> deleted = new ArrayList<>();
+        for (long uid : local)
+            deleted.add(uid);
+        for (long uid : remote)
+            deleted.remove(uid);
+        return deleted;
+    }
+
+    @Benchmark
+    public Object hashSet() {
+        Set<Long> l = new HashSet<>();
+        for (long uid : local)
+            l.add(uid);
+        Set<Long> r = new HashSet<>();
+        for (long uid : remote)
+            r.add(uid);
+        List<Long> deleted = new ArrayList<>();
+        for (Long uid : l)
+            if (!r.contains(uid))
+                deleted.add(uid);
+        List<Long> added = new ArrayList<>();
+        for (Long uid : r)
+            if (!l.contains(uid))
+                added.add(uid);
+        return new Object[]{deleted, added};
+    }
+
+    @Benchmark
+    public Object uidSet() {
+        UidSet l = new UidSet(local);
+        UidSet r = new UidSet(remote);
+        return new long[][]{l.minus(r), r.minus(l)};
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(UidSetBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,49 @@
+package eu.faircode.email;
+
+/*
+    This file is part of FairEmail.
+
+    FairEmail is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2018 by Marcel Bokhorst (M66B)
+*/
+
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UidSetTest {
+    @Test
+    public void testMinus() {
+        UidSet local = new UidSet(new long[]{7, 3, 5, 1, 3});
+        UidSet remote = new UidSet(new long[]{9, 5, 1, 8});
+        assertArrayEquals(new long[]{3, 7}, local.minus(remote));
+        assertArrayEquals(new long[]{8, 9}, remote.minus(local));
+        assertArrayEquals(new long[]{}, local.minus(local));
+        assertArrayEquals(new long[]{1, 3, 5, 7}, local.minus(new UidSet(new long[0])));
+    }
+
+    @Test
+    public void testContains() {
+        UidSet uids = new UidSet(new long[]{4294967295L, 2, 2, 10});
+        assertArrayEquals(new long[]{2, 10, 4294967295L}, uids.toArray());
+        assertTrue(uids.contains(4294967295L));
+        assertTrue(uids.contains(2));
+        assertFalse(uids.contains(3));
+    }
+}